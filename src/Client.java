@@ -1,8 +1,34 @@
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
 /**
@@ -12,7 +38,6 @@ import java.util.regex.Pattern;
 public class Client {
 	public final int WEB_PORT;
 	public final int DNS_PORT;
-	public final int MY_DNS_PORT;
 	public final String LOCAL_DNS_IP;
 
 	// Common messages for ui
@@ -22,22 +47,104 @@ public class Client {
 	private static final String MESSAGE_CANT_CONNECT = "ERROR - Could not connect to server.";
 	private static final String MESSAGE_CANT_WRITE_FILE = "ERROR - Could not write to file.";
 	private static final String MESSAGE_CANT_DOWNLOAD_FILE = "ERROR - Could not download file.";
+	private static final String MESSAGE_DOWNLOAD_INTERRUPTED = "ERROR - Download interrupted, request the file again to resume.";
 	private static final String MESSAGE_CANT_DISPLAY_CONTENT = "ERROR - Could not display content.";
 	private static final String MESSAGE_CANT_RESOLVE = "ERROR - Could not resolve url.";
 	private static final String MESSAGE_INVALID_URL = "ERROR - The provided url is invalid.";
 	private static final String MESSAGE_UNKNOWN_ERROR = "ERROR - Server could not be contacted.";
 
+	/** Appended to the local filename while a download is unfinished. */
+	private static final String PART_SUFFIX = ".part";
+	/** Appended to the part file for the file it keeps the validator of the download in, to resume it. */
+	private static final String VALIDATOR_SUFFIX = ".validator";
+
+	/** Default number of connections a download is split over. */
+	public static final int DEFAULT_CONNECTIONS = 4;
+	/** Default size of the first segment of a download, and the smallest one it is split into. */
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	/** Characters decoded at a time from text responses. */
+	private static final int TEXT_BUFFER = 8 * 1024;
+
+	private int connections = DEFAULT_CONNECTIONS;
+	/** False to receive downloads without saving them, as a load test does. */
+	private boolean keepFiles = true;
+	private long segmentSize = DEFAULT_SEGMENT_SIZE;
+	/** Threads fetching the segments of downloads beyond the first one, and racing connections. */
+	private final ExecutorService segmentPool;
+
+	/** Gets the links of text pages ready to follow, null to fetch every link cold. */
+	private volatile Prefetcher prefetcher;
+
+	/** Resolves names for every request, see {@link #resolver()}. */
+	private Resolver resolver;
+
+	/** Milliseconds a connection attempt gets before the next address is tried alongside it. */
+	private static final long ATTEMPT_DELAY = 250;
+	/** Scores the addresses of servers, to pick the best one for each request and segment. */
+	private final ServerSelector selector = new ServerSelector();
+
+	/** Connections kept open between requests, reused when the next one goes to the same server. */
+	private ConnectionPool pool = new ConnectionPool(ConnectionPool.DEFAULT_MAX_PER_HOST, ConnectionPool.DEFAULT_IDLE_TIMEOUT);
+
 	/**
 	 * Create a Client listening on a specific port, and resolve dns queries with a specific ip/port.
 	 * @param webPort Port to make tcp connections on.
-	 * @param dnsPort Port to use for sending and recieving dns requests.
+	 * @param dnsPort Port of the dns server, when its ip does not have one.
 	 * @param localDnsIp Ip address of a dns server.
 	 */
 	public Client(int webPort, int dnsPort, String localDnsIp) {
 		WEB_PORT = webPort;
 		DNS_PORT = dnsPort;
-		MY_DNS_PORT = dnsPort;
 		LOCAL_DNS_IP = localDnsIp;
+		AtomicInteger threadCount = new AtomicInteger();
+		segmentPool = Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "client-segment-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Sets how many connections are kept to each server, and for how long.
+	 * @param maxPerHost Connections in use at once per server, downloads wait for one past it.
+	 * @param idleTimeout Seconds an idle connection is kept, 0 to close every connection after its response.
+	 */
+	public void setConnectionPool(int maxPerHost, int idleTimeout) {
+		ConnectionPool old = pool;
+		pool = new ConnectionPool(maxPerHost, idleTimeout);
+		old.close();
+	}
+
+	/**
+	 * Sets whether downloads are saved. Unsaved downloads are received all the same, and never resumed.
+	 * @param keepFiles False to drop the content of downloads as it arrives.
+	 */
+	public void setKeepFiles(boolean keepFiles) {
+		this.keepFiles = keepFiles;
+	}
+
+	/**
+	 * Sets how downloads are split. The first segment is fetched on its own connection, to learn the size of the file,
+	 * and the rest of the file is split evenly over the other connections, all fetched at once.
+	 * @param connections Connections a download is fetched over, 1 to fetch it over one.
+	 * @param segmentSize Size of the first segment, and the smallest one the rest is split into.
+	 */
+	public void setSegments(int connections, long segmentSize) {
+		this.connections = Math.max(1, connections);
+		this.segmentSize = Math.max(1, segmentSize);
+	}
+
+	/**
+	 * Sets whether the links of text pages are prefetched. Once a page has been fetched, the hosts of its links are
+	 * resolved and connected to, and the start of each file they lead to is cached, so following one starts sooner.
+	 * @param headSize Bytes cached from the start of each file, 0 to only resolve and connect, negative to prefetch
+	 * nothing.
+	 * @param budget Most bytes cached for all files at once.
+	 */
+	public void setPrefetch(long headSize, long budget) {
+		Prefetcher old = prefetcher;
+		prefetcher = headSize < 0 ? null : new Prefetcher(this, headSize, budget);
+		if (old != null) old.close();
 	}
 
 	/**
@@ -52,7 +159,8 @@ public class Client {
 		while(true) {
 			out.print(MESSAGE_PROMPT_URL);
 			URL url = toUrl(in.next());
-			out.println(get(url));
+			// Text is printed as it arrives, the message follows it
+			out.println(get(url, out));
 			out.flush();
 		}
 	}
@@ -62,7 +170,7 @@ public class Client {
 	 * @param rawUrl The raw string representation of a url.
 	 * @return The url object representing the raw string input.
 	 */
-	private URL toUrl(String rawUrl) {
+	URL toUrl(String rawUrl) {
 		try {
 			// We need to add a protocol infront of the url for it to be parsed correctly.
 			return new URL(rawUrl.startsWith("http://") ? rawUrl : "http://" + rawUrl);
@@ -75,116 +183,595 @@ public class Client {
 	 * Sends a "get" request, and blocks for the result.
 	 * If the file downloaded is not index, or txt, it will be downloaded as a
 	 * separate file and opend with the os specific application for the file extention.
+	 * A download that was interrupted is kept, and the next request for the same file only asks for the rest.
+	 * Large files are fetched in segments over several connections, spread over all the addresses of the host.
 	 * @param url Url to query.
 	 * @return String result of the file.
 	 */
 	public String get(URL url) {
+		return get(url, null);
+	}
+
+	/**
+	 * Sends a "get" request like {@link #get(URL)}, but prints text files to a stream as they arrive, rather than
+	 * holding all of them in memory.
+	 * @param url Url to query.
+	 * @param text Where text files go as they arrive, null to return them instead.
+	 * @return String result of the file, empty if it was printed.
+	 */
+	public String get(URL url, Appendable text) {
+		return get(url, text, new RequestTiming());
+	}
+
+	/**
+	 * Sends a "get" request like {@link #get(URL, Appendable)}, recording where its time went.
+	 * @param url Url to query.
+	 * @param text Where text files go as they arrive, null to return them instead.
+	 * @param timing Filled in with the time of each phase of the request.
+	 * @return String result of the file, empty if it was printed.
+	 */
+	String get(URL url, Appendable text, RequestTiming timing) {
 		int destPort = url.getPort() != -1 ? url.getPort() : WEB_PORT;
-		String host = url.getHost();
+		List<String> hosts = Collections.singletonList(url.getHost());
 
-		if (!isIp(host)) {
+		long phase = System.nanoTime();
+		if (!isIp(url.getHost())) {
 			// If the host is not an explicit ip, ask the dns server to find the ip for us.
 			try {
-				host = dnsLookup(host);
+				hosts = dnsLookup(url.getHost());
 			} catch (IOException e) {
 				throw new IllegalStateException(MESSAGE_CANT_RESOLVE);
 			}
 		}
-
-		Socket socket;
-		BufferedInputStream inBuff;
-		OutputStream cOut;
-
-		try { // Create the socket to connect on.
-			socket = new Socket(host, destPort);
-			inBuff = new BufferedInputStream(socket.getInputStream());
-			cOut = socket.getOutputStream();
-		} catch (Exception e) {
-			throw new IllegalStateException(MESSAGE_CANT_CONNECT);
-		}
+		timing.dns = System.nanoTime() - phase;
 
 		// Get the requested file path.
 		String path = url.getPath();
 		if (path.isEmpty()) path = "/";
+		boolean download = !getExtension(url).equals(".txt");
+		File file = new File(getLocalFileName(url));
+		// Null when downloads are not kept, their content is received all the same
+		File part = keepFiles ? new File(file.getPath() + PART_SUFFIX) : null;
+		File validatorFile = keepFiles ? new File(part.getPath() + VALIDATOR_SUFFIX) : null;
+		// Zero when there is no unfinished download to resume
+		long resumeFrom = download && part != null ? part.length() : 0;
+		// Validator of the file the unfinished download is of, null if there is none
+		byte[] resumed = null;
+		if (resumeFrom > 0) {
+			try {
+				resumed = Files.readAllBytes(validatorFile.toPath());
+			} catch (IOException e) {
+				// No telling which version of the file it is, so start over
+				if (!part.delete()) throw new IllegalStateException(MESSAGE_CANT_WRITE_FILE);
+				resumeFrom = 0;
+			}
+		}
+		Prefetcher prefetcher = this.prefetcher;
+		// A prefetched head starts the download off like an unfinished one, once the file is known not to have changed
+		Prefetcher.Head head = download && prefetcher != null ? prefetcher.take(url.toString()) : null;
+		if (head != null && part != null && resumeFrom == 0) {
+			try {
+				Files.write(part.toPath(), head.bytes);
+				resumeFrom = head.bytes.length;
+				resumed = head.validator;
+			} catch (IOException e) {
+				head = null;
+			}
+		} else {
+			head = null;
+		}
+		// Downloads always ask for a range, so the answer carries the validator of the file
+		WebRequest request;
+		if (download && connections > 1) // Only the first segment, the answer tells how big the rest is
+			request = new WebRequest(path, WebRequest.VERSION_2, true, resumeFrom, resumeFrom + segmentSize - 1);
+		else if (download)
+			request = new WebRequest(path, WebRequest.VERSION_2, true, resumeFrom, -1);
+		else
+			request = new WebRequest(path, WebRequest.VERSION_2, true);
 
-		// writes to the open socket stream to request file.
+		WebConnection connection;
+		byte code;
+		long length, start = 0, total;
+		byte[] validator = null;
+		// An address that fails is left out, and the request sent again to the next best one
+		List<String> candidates = new ArrayList<>(hosts);
+		while (true) {
+			phase = System.nanoTime();
+			try {
+				connection = connect(candidates, destPort);
+			} catch (IOException e) {
+				throw new IllegalStateException(MESSAGE_CANT_CONNECT);
+			}
+			timing.connect += System.nanoTime() - phase;
+			phase = System.nanoTime();
+			try {
+				try {
+					code = connection.send(request);
+				} catch (IOException e) {
+					if (!connection.reused) throw e;
+					// The server closed the idle connection in the meantime, so try once more on a new one
+					connection = pool.reopen(connection);
+					code = connection.send(request);
+				}
+				length = connection.readLong();
+				total = length;
+				if (code == Web.STATUS_PARTIAL) {
+					start = connection.readLong();
+					total = connection.readLong();
+					validator = connection.readBytes(WebRequest.VALIDATOR_SIZE);
+				}
+				selector.latency(connection.host, destPort, System.nanoTime() - phase);
+				break;
+			} catch (IOException e) {
+				selector.failed(connection.host, destPort);
+				pool.release(connection, false);
+				candidates.remove(connection.host);
+				if (candidates.isEmpty()) throw new IllegalStateException(MESSAGE_CANT_CONNECT);
+			}
+		}
+		if (resumed != null && !Arrays.equals(validator, resumed)) {
+			// The file changed since the download started or its head was fetched, so ask for it all again
+			pool.release(connection, false);
+			if (!part.delete()) throw new IllegalStateException(MESSAGE_CANT_WRITE_FILE);
+			return get(url, text, timing);
+		}
+		timing.firstByte = System.nanoTime() - phase;
+		phase = System.nanoTime();
+
+		String message;
+		// Set once the response has been read to its end, so the connection can take another request
+		boolean complete = false;
 		try {
-			cOut.write(path.getBytes());
-			cOut.write(Web.PROTOCOL_DELIM.getBytes());
-		} catch (IOException e) {
-			throw new IllegalStateException(MESSAGE_CANT_CONNECT);
+			switch (code) {
+				case Web.STATUS_OK:
+				case Web.STATUS_PARTIAL:
+					if (download) {
+						long began = System.nanoTime();
+						if (part != null) {
+							try {
+								Files.write(validatorFile.toPath(), validator);
+							} catch (IOException e) {
+								throw new IllegalStateException(MESSAGE_CANT_WRITE_FILE);
+							}
+						}
+						List<Segment> segments = split(start, start + length, total);
+						int used = downloadSegments(connection, hosts, destPort, path, part, segments, total, validator);
+						complete = true;
+						timing.bytes = total - start;
+						double seconds = (System.nanoTime() - began) / 1e9, megabytes = (total - start) / 1e6;
+						if (part != null) {
+							try {
+								Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+								Files.deleteIfExists(validatorFile.toPath());
+								// Headless clients, such as scripts, just keep the file
+								if (Desktop.isDesktopSupported()) Desktop.getDesktop().open(file);
+							} catch (IOException e) {
+								throw new IllegalStateException(MESSAGE_CANT_DOWNLOAD_FILE);
+							}
+						}
+						message = String.format("%s %.1f MB in %.2fs, %.1f MB/s over %d connection%s.", MESSAGE_DOWNLOADED,
+							megabytes, seconds, megabytes / seconds, used, used == 1 ? "" : "s");
+						break;
+					} else {
+						try {
+							if (text != null) {
+								Prefetcher.Page page = prefetcher != null ? Prefetcher.capture(text) : null;
+								readText(connection, length, page != null ? page : text);
+								if (page != null) prefetcher.page(page.toString());
+								message = "";
+							} else {
+								StringBuilder sb = new StringBuilder();
+								readText(connection, length, sb);
+								if (prefetcher != null) prefetcher.page(sb);
+								message = sb.toString();
+							}
+							complete = true;
+							timing.bytes = length;
+						} catch (IOException e) {
+							message = MESSAGE_CANT_DISPLAY_CONTENT;
+						}
+						break;
+					}
+				case Web.STATUS_NOT_FOUND:
+					message = MESSAGE_404;
+					complete = length == 0;
+					break;
+				default:
+					message = MESSAGE_UNKNOWN_ERROR;
+			}
+		} catch (RuntimeException e) {
+			pool.release(connection, false);
+			throw e;
 		}
 
-		// Awaits for the responce to be received.
-		byte[] codeBuff = new byte[1];
-		int code = -1;
+		timing.transfer = System.nanoTime() - phase;
+		// Downloads score each segment as it arrives
+		if (!download && complete) selector.transfer(connection.host, destPort, timing.bytes, timing.transfer);
+
+		// Keep the connection for the next request, unless the response could not be read to its end
+		pool.release(connection, complete);
+		return message;
+	}
+
+	/**
+	 * Gets ready to follow a link: resolves its host, opens a connection to it and leaves it in the pool, and fetches the
+	 * start of the file if it would be downloaded. Nothing is fetched if the pool has no connection to spare, or the file
+	 * has an unfinished download already.
+	 * @param url The link.
+	 * @param headSize Bytes to fetch from the start of the file, 0 to only connect.
+	 * @return The start of the file, or all of it if it is small. Null if none was fetched.
+	 * @throws IOException Throws if the host could not be resolved or connected to, or the response could not be read.
+	 */
+	Prefetcher.Head prefetch(URL url, long headSize) throws IOException {
+		int destPort = url.getPort() != -1 ? url.getPort() : WEB_PORT;
+		String host = selector.rank(dnsLookup(url.getHost()), destPort).get(0);
+		WebConnection connection = pool.tryAcquire(host, destPort);
+		if (connection == null) return null;
+		String path = url.getPath().isEmpty() ? "/" : url.getPath();
+		File part = new File(getLocalFileName(url) + PART_SUFFIX);
+		if (headSize == 0 || getExtension(url).equals(".txt") || part.length() > 0) {
+			pool.release(connection, true);
+			return null;
+		}
+		boolean complete = false;
 		try {
-			inBuff.read(codeBuff, 0, 1);
-			code = codeBuff[0];
+			byte code;
+			WebRequest request = new WebRequest(path, WebRequest.VERSION_2, true, 0, headSize - 1);
+			try {
+				code = connection.send(request);
+			} catch (IOException e) {
+				if (!connection.reused) throw e;
+				connection = pool.reopen(connection);
+				code = connection.send(request);
+			}
+			long length = connection.readLong();
+			if (code != Web.STATUS_PARTIAL) {
+				complete = length == 0;
+				return null;
+			}
+			connection.readLong(); // Start, always 0
+			connection.readLong(); // Total, the validator tells the file apart
+			byte[] validator = connection.readBytes(WebRequest.VALIDATOR_SIZE);
+			byte[] bytes = new byte[(int) length];
+			for (int read = 0; read < bytes.length; ) {
+				ByteBuffer received = connection.receive(1);
+				int count = Math.min(received.remaining(), bytes.length - read);
+				received.get(bytes, read, count);
+				read += count;
+			}
+			complete = true;
+			return new Prefetcher.Head(bytes, validator);
+		} finally {
+			pool.release(connection, complete);
+		}
+	}
+
+	/**
+	 * Splits the part of a file still to download into segments, in file order.
+	 * @param start Offset of the first byte to download.
+	 * @param firstEnd End of the first segment, already asked for.
+	 * @param total Size of the file.
+	 * @return The segments, the first one covering {@code start} to {@code firstEnd}.
+	 */
+	private List<Segment> split(long start, long firstEnd, long total) {
+		List<Segment> segments = new ArrayList<>();
+		segments.add(new Segment(start, firstEnd));
+		long rest = total - firstEnd;
+		int count = (int) Math.min(connections - 1, (rest + segmentSize - 1) / segmentSize);
+		for (int i = 0; i < count; i++)
+			segments.add(new Segment(firstEnd + rest * i / count, firstEnd + rest * (i + 1) / count));
+		return segments;
+	}
+
+	/**
+	 * Takes a connection to the best address of a server. A pooled connection to the best address is used if there is
+	 * one. Otherwise connections are raced, Happy Eyeballs style: the addresses are tried best first, the next one
+	 * whenever the last has failed or not connected within {@link #ATTEMPT_DELAY} ms, and the first to connect wins.
+	 * Connections that lose the race are kept in the pool for later requests.
+	 * @param hosts Addresses of the server.
+	 * @param port Port of the server.
+	 * @return An open connection, to be given back to the pool.
+	 * @throws IOException Throws if no address could be connected to.
+	 */
+	private WebConnection connect(List<String> hosts, int port) throws IOException {
+		List<String> ranked = selector.rank(hosts, port);
+		if (ranked.size() == 1 || pool.hasIdle(ranked.get(0), port)) return attempt(ranked.get(0), port);
+		CompletableFuture<WebConnection> winner = new CompletableFuture<>();
+		AtomicInteger next = new AtomicInteger(), failed = new AtomicInteger();
+		startAttempt(ranked, port, next, failed, winner);
+		try {
+			while (true) {
+				try {
+					return winner.get(ATTEMPT_DELAY, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					startAttempt(ranked, port, next, failed, winner);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// Attempts still running give their connection back themselves
+			if (!winner.completeExceptionally(new InterruptedIOException()) && !winner.isCompletedExceptionally())
+				pool.release(winner.join(), true);
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Starts the next attempt of a connection race, which starts the one after it straight away if it fails.
+	 * @param ranked Addresses, best first.
+	 * @param port Port of the server.
+	 * @param next Index of the next address to try.
+	 * @param failed Attempts that failed so far.
+	 * @param winner Completed by the first attempt to connect, or with the last failure if they all fail.
+	 */
+	private void startAttempt(List<String> ranked, int port, AtomicInteger next, AtomicInteger failed,
+	                          CompletableFuture<WebConnection> winner) {
+		int index = next.getAndIncrement();
+		if (index >= ranked.size() || winner.isDone()) return;
+		segmentPool.execute(() -> {
+			try {
+				WebConnection connection = attempt(ranked.get(index), port);
+				if (!winner.complete(connection)) pool.release(connection, true);
+			} catch (IOException | RuntimeException e) {
+				if (failed.incrementAndGet() == ranked.size()) winner.completeExceptionally(e);
+				else startAttempt(ranked, port, next, failed, winner);
+			}
+		});
+	}
+
+	/**
+	 * Takes a connection to one address, scoring how long it took to connect, or that it could not.
+	 * @param host Address of the server.
+	 * @param port Port of the server.
+	 * @return An open connection, to be given back to the pool.
+	 * @throws IOException Throws if the address could not be connected to.
+	 */
+	private WebConnection attempt(String host, int port) throws IOException {
+		try {
+			WebConnection connection = pool.acquire(host, port);
+			if (!connection.reused) selector.latency(host, port, connection.connectTime);
+			return connection;
 		} catch (IOException e) {
-			code = -1;
+			selector.failed(host, port);
+			throw e;
 		}
-		String message;
-		switch (code) {
-			case Web.STATUS_OK:
-				if (!getExtension(url).equals(".txt")) {
+	}
+
+	/**
+	 * Downloads the segments of a file into its part file. The first one is received on the connection it was asked on,
+	 * and the rest are shared out over that connection and as many more as the pool has free right away, each taking
+	 * the next segment once done with the last. So a busy pool slows a download down, but never stalls it.
+	 * The other connections are spread over the addresses of the server by their throughput. When a connection fails,
+	 * the rest of its segment is left to the others, and once they are done, whatever is left is fetched on new
+	 * connections to the best addresses that have not failed.
+	 * On failure the part file is cut back to what was downloaded without gaps, so it can be resumed.
+	 * @param connection Connection the first segment is being received on, its header already read.
+	 * @param hosts Addresses of the server, the other connections are spread over them.
+	 * @param port Port of the server.
+	 * @param path Path of the file.
+	 * @param part The file to write to, null to drop the content.
+	 * @param segments Segments to download, in file order.
+	 * @param total Size of the file.
+	 * @param validator Validator of the file, the other segments must have the same.
+	 * @return The number of connections used.
+	 */
+	private int downloadSegments(WebConnection connection, List<String> hosts, int port, String path, File part,
+	                             List<Segment> segments, long total, byte[] validator) {
+		// Segments given up on go back to the front, so the file fills in from the start
+		Deque<Segment> queue = new ConcurrentLinkedDeque<>(segments.subList(1, segments.size()));
+		// Connections taken for the other segments, until each is handed to the task that gives it back
+		List<WebConnection> extra = new ArrayList<>();
+		List<WebConnection> opened = Collections.synchronizedList(new ArrayList<>());
+		for (String host : selector.spread(selector.rank(hosts, port), port, segments.size() - 1)) {
+			try {
+				WebConnection taken = pool.tryAcquire(host, port);
+				if (taken == null) continue;
+				if (!taken.reused) selector.latency(host, port, taken.connectTime);
+				extra.add(taken);
+			} catch (IOException e) {
+				// One connection fewer, the others share its segments
+				selector.failed(host, port);
+			}
+		}
+		int used = extra.size() + 1;
+		try (PartFile out = new PartFile(part, segments)) {
+			// Cut back the part file on ctrl-c too, the later segments would leave a gap in it otherwise
+			Thread hook = new Thread(() -> out.keepReceived(true));
+			if (part != null) Runtime.getRuntime().addShutdownHook(hook);
+			List<Future<?>> fetches = new ArrayList<>();
+			while (!extra.isEmpty()) {
+				WebConnection taken = extra.remove(0);
+				opened.add(taken);
+				fetches.add(segmentPool.submit(() -> {
+					WebConnection[] holder = {taken};
+					boolean complete = false;
 					try {
-						File file = new File(getLocalFileName(url));
-						file.delete();
-						FileOutputStream fOut = new FileOutputStream(file);
-						pipe(inBuff, fOut);
-						fOut.flush();
-						fOut.close();
-						Desktop.getDesktop().open(file);
-					} catch (FileNotFoundException e) {
-						throw new IllegalStateException(MESSAGE_CANT_WRITE_FILE);
-					} catch (IOException e) {
-						throw new IllegalStateException(MESSAGE_CANT_DOWNLOAD_FILE);
+						complete = fetchSegments(holder, true, queue, path, total, validator, out, opened);
+					} finally {
+						pool.release(holder[0], complete);
 					}
-					message = MESSAGE_DOWNLOADED;
-					break;
-				} else {
+				}));
+			}
+			try {
+				Segment first = segments.get(0);
+				long began = System.nanoTime();
+				try {
+					receive(connection, out, first);
+					selector.transfer(connection.host, port, first.end - first.start, System.nanoTime() - began);
+					fetchSegments(new WebConnection[] {connection}, false, queue, path, total, validator, out, opened);
+				} catch (IOException e) {
+					selector.failed(connection.host, port);
+					connection.close();
+					queue.addFirst(first);
+				}
+				for (Future<?> fetch : fetches) fetch.get();
+				// Segments left by connections that failed are fetched on new ones, avoiding the addresses that failed
+				List<String> candidates = new ArrayList<>(hosts);
+				while (!queue.isEmpty()) {
+					if (candidates.isEmpty()) throw new IOException("Every address failed.");
+					WebConnection[] holder = {connect(candidates, port)};
+					opened.add(holder[0]);
+					boolean complete = fetchSegments(holder, true, queue, path, total, validator, out, opened);
+					pool.release(holder[0], complete);
+					if (!complete) candidates.remove(holder[0].host);
+					used++;
+				}
+			} catch (IOException | ExecutionException | InterruptedException e) {
+				// Stop the other connections by closing them, interrupting them would close the file
+				queue.clear();
+				synchronized (opened) {
+					for (WebConnection taken : opened) taken.close();
+				}
+				for (Future<?> fetch : fetches) {
 					try {
-						message = readString(inBuff);
-					} catch (IOException e) {
-						message = MESSAGE_CANT_DISPLAY_CONTENT;
-					}
-					break;
+						fetch.get();
+					} catch (ExecutionException | InterruptedException ignored) {}
 				}
-			case Web.STATUS_NOT_FOUND:
-				message = MESSAGE_404;
-				break;
-			default:
-				message = MESSAGE_UNKNOWN_ERROR;
+				out.keepReceived(false);
+				throw new IllegalStateException(MESSAGE_DOWNLOAD_INTERRUPTED);
+			} finally {
+				try {
+					if (part != null) Runtime.getRuntime().removeShutdownHook(hook);
+				} catch (IllegalStateException ignored) {} // Already shutting down
+			}
+		} catch (IOException e) {
+			// Only the connections never handed to a task, the tasks have given back theirs
+			for (WebConnection taken : extra) pool.release(taken, false);
+			throw new IllegalStateException(MESSAGE_CANT_WRITE_FILE);
 		}
+		return used;
+	}
 
-		// Clean up our mess
-		try {
-			inBuff.close();
-			cOut.close();
-			socket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Fetches segments of a file over one connection, one after another, until none are left. Each is asked for from
+	 * where an earlier attempt at it left off.
+	 * @param holder Holds the connection, kept open for reuse, and replaced if it had to be reopened.
+	 * @param retry True to retry the first request once on a new connection if the idle one was closed meanwhile.
+	 * @param queue Segments left to fetch.
+	 * @param path Path of the file.
+	 * @param total Size of the file, to make sure it has not changed since the first segment.
+	 * @param validator Validator of the file, likewise.
+	 * @param out The file to write to.
+	 * @param opened Connections to close to stop the download, a new one is added to it.
+	 * @return True if every segment was fetched. False if the connection failed, in which case it is closed, and the
+	 * segment it was on is put back at the front of the queue.
+	 */
+	private boolean fetchSegments(WebConnection[] holder, boolean retry, Deque<Segment> queue, String path, long total,
+	                              byte[] validator, PartFile out, List<WebConnection> opened) {
+		Segment segment;
+		while ((segment = queue.poll()) != null) {
+			long from = segment.start + segment.received.get();
+			if (from == segment.end) continue;
+			WebRequest request = new WebRequest(path, WebRequest.VERSION_2, true, from, segment.end - 1);
+			long began = System.nanoTime();
+			try {
+				byte code;
+				try {
+					code = holder[0].send(request);
+				} catch (IOException e) {
+					if (!retry || !holder[0].reused) throw e;
+					holder[0] = pool.reopen(holder[0]);
+					opened.add(holder[0]);
+					code = holder[0].send(request);
+				}
+				retry = false;
+				long length = holder[0].readLong();
+				if (code != Web.STATUS_PARTIAL) throw new IOException("Range not served.");
+				long start = holder[0].readLong(), size = holder[0].readLong();
+				byte[] received = holder[0].readBytes(WebRequest.VALIDATOR_SIZE);
+				if (start != from || length != segment.end - from || size != total || !Arrays.equals(received, validator))
+					throw new IOException("File changed while downloading.");
+				selector.latency(holder[0].host, holder[0].port, System.nanoTime() - began);
+				began = System.nanoTime();
+				receive(holder[0], out, segment);
+				selector.transfer(holder[0].host, holder[0].port, length, System.nanoTime() - began);
+			} catch (IOException e) {
+				queue.addFirst(segment);
+				selector.failed(holder[0].host, holder[0].port);
+				holder[0].close();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Receives a segment, writing it in place straight from the connection's buffer.
+	 * @param connection Connection to read from, positioned at the start of the segment's content.
+	 * @param out The file to write to.
+	 * @param segment The segment, whose progress is kept up to date.
+	 * @throws IOException Throws if the connection closed early, or the file could not be written.
+	 */
+	private void receive(WebConnection connection, PartFile out, Segment segment) throws IOException {
+		long remaining = segment.end - segment.start - segment.received.get();
+		while (remaining > 0) {
+			ByteBuffer received = connection.receive(1);
+			ByteBuffer body = received.duplicate();
+			body.limit(body.position() + (int) Math.min(body.remaining(), remaining));
+			int count = body.remaining();
+			out.write(segment, body);
+			received.position(received.position() + count);
+			remaining -= count;
 		}
-		return message;
 	}
 
 	/**
 	 * Lookup a url for resolving a domain name.
-	 * @param url The url of the domain you wish to seek.");
-	 * @return
+	 * @param url The url of the domain you wish to seek.
+	 * @return Every address of the domain, best first.
 	 * @throws IOException Request timeouts, or a problem with socket io.
 	 */
-	String dnsLookup(String url) throws IOException {
-		if (url.equals("localhost")) {
-			return url;
+	List<String> dnsLookup(String url) throws IOException {
+		try {
+			return dnsLookupAsync(url).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
 		}
+	}
 
-		String[] tokens = Dns.request(url, MY_DNS_PORT, LOCAL_DNS_IP, DNS_PORT);
+	/**
+	 * Lookup a url for resolving a domain name, without waiting for the answer. Any number of lookups may be
+	 * outstanding at once, and answers are cached for their ttl.
+	 * @param url The url of the domain you wish to seek.
+	 * @return Every address of the domain, best first. Completes exceptionally with an {@link IOException} on a timeout,
+	 * or an {@link IllegalStateException} if the domain has no addresses.
+	 */
+	CompletableFuture<List<String>> dnsLookupAsync(String url) {
+		if (url.equals("localhost") || isIp(url)) {
+			return CompletableFuture.completedFuture(Collections.singletonList(url));
+		}
+		try {
+			return resolver().resolve(url).thenApply(answers -> {
+				List<String> addresses = new ArrayList<>();
+				for (DnsRecord answer : answers)
+					if (answer.type.equals(Dns.DNS_TYPE_A)) addresses.add(answer.value);
+				if (addresses.isEmpty()) throw new IllegalStateException(MESSAGE_CANT_RESOLVE);
+				return addresses;
+			});
+		} catch (SocketException e) {
+			CompletableFuture<List<String>> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
 
-		if (tokens != null && (tokens[0].equals(Dns.DNS_TYPE_A))) {
-			return tokens[1];
-		} else throw new IllegalStateException(MESSAGE_CANT_RESOLVE);
+	/**
+	 * @return The resolver every lookup goes through, opened on the first one.
+	 * @throws SocketException Throws if its socket could not be opened.
+	 */
+	private synchronized Resolver resolver() throws SocketException {
+		if (resolver == null)
+			resolver = new Resolver(LOCAL_DNS_IP, DNS_PORT, Resolver.DEFAULT_CACHE_SIZE, Resolver.DEFAULT_TIMEOUT, Resolver.DEFAULT_DEADLINE);
+		return resolver;
 	}
 
 	/**
@@ -226,32 +813,141 @@ public class Client {
 	}
 
 	/**
-	 * Utility for piping one stream into another.
-	 * @param in Pipes from this stream...
-	 * @param out ...into this one.
-	 * @throws IOException Some stream writing exception could be thrown.
+	 * Decodes a text response body as it arrives. Only a small buffer of characters is held at a time, and characters
+	 * split between reads are put back together.
+	 * @param connection Connection to read from, positioned at the start of the body.
+	 * @param length Bytes to read.
+	 * @param out Where the text goes.
+	 * @throws IOException Throws if the connection closed early, or the text could not be written.
 	 */
-	private void pipe(InputStream in, OutputStream out) throws IOException {
-		int bytesRead ;
-		byte[] buffer = new byte[1024];
-		while ((bytesRead = in.read(buffer)) > 0) {
-			out.write(buffer, 0, bytesRead);
+	private void readText(WebConnection connection, long length, Appendable out) throws IOException {
+		CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.allocate(TEXT_BUFFER);
+		// Bytes of a character split between reads, left unread until the rest of it arrives
+		int pending = 0;
+		while (length > pending) {
+			ByteBuffer received = connection.receive(pending + 1);
+			ByteBuffer body = received.duplicate();
+			body.limit(body.position() + (int) Math.min(body.remaining(), length));
+			decode(decoder, body, chars, out, false);
+			length -= body.position() - received.position();
+			pending = body.remaining();
+			received.position(body.position());
 		}
+		// Only a broken character can be left, which is replaced
+		ByteBuffer received = connection.receive(pending);
+		ByteBuffer body = received.duplicate();
+		body.limit(body.position() + pending);
+		decode(decoder, body, chars, out, true);
+		received.position(body.limit());
+		decoder.flush(chars);
+		chars.flip();
+		out.append(chars);
 	}
 
 	/**
-	 * Reads a stream to completion, then returns the red bytes as a String.
-	 * @param in Stream to read from.
-	 * @return Stream output in bytes.
-	 * @throws IOException Some stream reading exceptions may be thrown...
+	 * Decodes bytes into a writer, a buffer of characters at a time.
+	 * @param decoder The decoder.
+	 * @param bytes Bytes to decode. Those of an unfinished character are left unread, unless {@code end} is set.
+	 * @param chars Buffer to decode into, empty.
+	 * @param out Where the characters go.
+	 * @param end True if no more bytes follow.
+	 * @throws IOException Throws if the characters could not be written.
 	 */
-	private String readString(InputStream in) throws IOException {
-		StringBuilder sb = new StringBuilder();
-		int count;
-		byte[] buffer = new byte[1024];
-		while((count = in.read(buffer)) > 0)
-			sb.append(new String(Arrays.copyOfRange(buffer, 0, count)));
-		return sb.toString();
+	private static void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars, Appendable out, boolean end)
+		throws IOException {
+		CoderResult result;
+		do {
+			result = decoder.decode(bytes, chars, end);
+			chars.flip();
+			out.append(chars);
+			chars.clear();
+		} while (result.isOverflow());
 	}
 
+	/** A range of a file being downloaded. */
+	private static class Segment {
+		final long start, end;
+		/** Bytes from the start written to the file so far. */
+		final AtomicLong received = new AtomicLong();
+
+		Segment(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/** The file a download is written into, shared by the threads fetching its segments. */
+	private static class PartFile implements Closeable {
+		/** Null if the content is dropped. */
+		final FileChannel channel;
+		final List<Segment> segments;
+		/** Held shared while writing, and alone while cutting the file back, so no write lands past the cut. */
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/**
+		 * @param file The part file, created if missing. Null to drop the content.
+		 * @param segments Segments of the download, in file order.
+		 * @throws IOException Throws if the file could not be opened.
+		 */
+		PartFile(File file, List<Segment> segments) throws IOException {
+			this.segments = segments;
+			if (file == null) {
+				channel = null;
+				return;
+			}
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			// Drops anything kept past where the server starts, so the file never mixes up content
+			channel.truncate(segments.get(0).start);
+		}
+
+		/**
+		 * Writes the next bytes of a segment in place.
+		 * @param segment The segment, whose progress is kept up to date.
+		 * @param buffer The bytes.
+		 * @throws IOException Throws if the file could not be written, or was closed by a shutdown.
+		 */
+		void write(Segment segment, ByteBuffer buffer) throws IOException {
+			lock.readLock().lock();
+			try {
+				long position = segment.start + segment.received.get();
+				if (channel == null) {
+					position += buffer.remaining();
+					buffer.position(buffer.limit());
+				}
+				while (buffer.hasRemaining()) position += channel.write(buffer, position);
+				segment.received.set(position - segment.start);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Cuts the file back to the end of what was downloaded without gaps, so resuming it is safe.
+		 * @param close True to also close the file, so segments still running can not write past the cut.
+		 */
+		void keepReceived(boolean close) {
+			if (channel == null) return;
+			lock.writeLock().lock();
+			try {
+				long end = segments.get(0).start;
+				for (Segment segment : segments) {
+					end = segment.start + segment.received.get();
+					if (end < segment.end) break;
+				}
+				channel.truncate(end);
+				if (close) channel.close();
+			} catch (IOException ignored) {
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (channel != null) channel.close();
+		}
+	}
 }
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connections to web servers kept open between requests, so a client fetching many files from the same servers does
+ * not pay for a new connection each time.
+ * <br />
+ * Connections are kept per server, by host and port, with a maximum in use at once for each server. Past it, callers
+ * wait for a connection to be given back. The most recently used idle connection is handed out first, so the rest idle
+ * out: they are closed once idle longer than the timeout, which is kept under the server's keep-alive so the server
+ * rarely closes one first. A connection idle for a while is checked before it is handed out again, and the caller
+ * still retries once on a new connection if a reused one fails.
+ */
+class ConnectionPool {
+	/** Defaults for the connections in use at once per server, and the seconds a connection is kept idle. */
+	public static final int
+		DEFAULT_MAX_PER_HOST = 8,
+		DEFAULT_IDLE_TIMEOUT = 10;
+	/** Milliseconds a connection may be idle before it is checked on reuse. */
+	private static final long VALIDATE_AFTER = 2000;
+	/** Milliseconds to wait for a connection when a server is at its maximum. */
+	private static final long ACQUIRE_TIMEOUT = 30000;
+
+	private final int maxPerHost;
+	/** Nanoseconds an idle connection is kept. */
+	private final long idleTimeout;
+	private final ConcurrentHashMap<String, Server> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxPerHost Connections in use at once per server.
+	 * @param idleTimeout Seconds an idle connection is kept, 0 to close every connection after its response.
+	 */
+	ConnectionPool(int maxPerHost, int idleTimeout) {
+		this.maxPerHost = Math.max(1, maxPerHost);
+		this.idleTimeout = TimeUnit.SECONDS.toNanos(Math.max(0, idleTimeout));
+	}
+
+	/**
+	 * Takes a connection to a server, reusing an idle one if there is one.
+	 * Every connection taken must be given back with {@link #release}.
+	 * @param host Address of the server.
+	 * @param port Port of the server.
+	 * @return An open connection.
+	 * @throws IOException Throws if no connection could be opened, or the server stayed at its maximum too long.
+	 */
+	WebConnection acquire(String host, int port) throws IOException {
+		Server server = servers.computeIfAbsent(host + ":" + port, key -> new Server(maxPerHost));
+		try {
+			if (!server.permits.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS))
+				throw new IOException("Too many connections to " + host + ":" + port);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		return take(server, host, port);
+	}
+
+	/**
+	 * Takes a connection to a server like {@link #acquire}, but only if the server is below its maximum.
+	 * @param host Address of the server.
+	 * @param port Port of the server.
+	 * @return An open connection, null if the server is at its maximum.
+	 * @throws IOException Throws if no connection could be opened.
+	 */
+	WebConnection tryAcquire(String host, int port) throws IOException {
+		Server server = servers.computeIfAbsent(host + ":" + port, key -> new Server(maxPerHost));
+		return server.permits.tryAcquire() ? take(server, host, port) : null;
+	}
+
+	/**
+	 * @param host Address of the server.
+	 * @param port Port of the server.
+	 * @return True if an idle connection to the server is waiting to be reused.
+	 */
+	boolean hasIdle(String host, int port) {
+		Server server = servers.get(host + ":" + port);
+		return server != null && server.hasIdle();
+	}
+
+	/**
+	 * Hands out an idle connection that is still open, or opens a new one, for a caller holding a permit.
+	 */
+	private WebConnection take(Server server, String host, int port) throws IOException {
+		try {
+			WebConnection connection;
+			while ((connection = server.take()) != null) {
+				long idle = System.nanoTime() - connection.lastUsed;
+				if (idle <= idleTimeout && (idle < TimeUnit.MILLISECONDS.toNanos(VALIDATE_AFTER) || connection.isOpen()))
+					return connection;
+				connection.close();
+			}
+			return new WebConnection(host, port);
+		} catch (IOException | RuntimeException e) {
+			server.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces a reused connection that failed, keeping its place in the pool.
+	 * @param connection The connection, which is closed.
+	 * @return A new connection to the same server.
+	 * @throws IOException Throws if no connection could be opened. The old one must still be given back.
+	 */
+	WebConnection reopen(WebConnection connection) throws IOException {
+		connection.close();
+		return new WebConnection(connection.host, connection.port);
+	}
+
+	/**
+	 * Gives a connection back.
+	 * @param connection A connection taken with {@link #acquire}.
+	 * @param reusable True if its last response was read to its end, so it can take another request.
+	 */
+	void release(WebConnection connection, boolean reusable) {
+		Server server = servers.get(connection.host + ":" + connection.port);
+		long now = System.nanoTime();
+		if (reusable && idleTimeout > 0 && connection.channel.isOpen()) {
+			connection.lastUsed = now;
+			server.give(connection);
+		} else {
+			connection.close();
+		}
+		server.permits.release();
+		server.closeIdle(now - idleTimeout);
+	}
+
+	/**
+	 * Closes every idle connection.
+	 */
+	void close() {
+		for (Server server : servers.values()) server.closeAll();
+	}
+
+	/** The connections to one server. */
+	private static class Server {
+		/** One per connection in use. */
+		final Semaphore permits;
+		/** Idle connections, most recently used first. */
+		private final Deque<WebConnection> idle = new ArrayDeque<>();
+
+		Server(int maxConnections) {
+			permits = new Semaphore(maxConnections);
+		}
+
+		synchronized WebConnection take() {
+			return idle.pollFirst();
+		}
+
+		synchronized boolean hasIdle() {
+			return !idle.isEmpty();
+		}
+
+		synchronized void give(WebConnection connection) {
+			idle.addFirst(connection);
+		}
+
+		/**
+		 * @param before Closes the connections last used before this time, in {@link System#nanoTime()}.
+		 */
+		synchronized void closeIdle(long before) {
+			while (!idle.isEmpty() && idle.peekLast().lastUsed - before < 0) idle.pollLast().close();
+		}
+
+		synchronized void closeAll() {
+			while (!idle.isEmpty()) idle.pollFirst().close();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the connections of a server speaking the web protocol, each on a worker thread: the threads engine of
+ * {@link Web}, and what {@link Edge} serves with. Reading requests, keep-alive and draining on shutdown work the same
+ * for both, only the response to each request is up to the server, through its {@link Responder}.
+ * <br />
+ * Accepting stops while every worker is busy, so further connections wait in the kernel's accept backlog rather than
+ * in memory. Version 1 connections end after one response, later versions once the client closes, asks to close, or
+ * has been idle for the keep-alive timeout.
+ */
+class ConnectionServer {
+	/** Writes the response to one request. */
+	interface Responder {
+		/**
+		 * @param request The request.
+		 * @param socket Connection to write to, accepted from a channel.
+		 * @param writer Output for log messages.
+		 * @throws IOException Throws if the connection could not be written to, it is then closed.
+		 */
+		void respond(WebRequest request, Socket socket, PrintWriter writer) throws IOException;
+	}
+
+	/** Prefix of the names of the worker threads. */
+	private final String name;
+	private final Responder responder;
+	/** Connections being served right now, shared with the server for its reports. */
+	private final AtomicInteger active;
+	private int
+		maxConnections = Web.DEFAULT_MAX_CONNECTIONS,
+		drainTimeout = Web.DEFAULT_DRAIN_TIMEOUT,
+		keepAliveTimeout = Web.DEFAULT_KEEP_ALIVE;
+	private volatile boolean running = true;
+	/** Connections waiting for their next request, closed right away on shutdown. */
+	private final Set<Socket> idleSockets = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param name Prefix of the names of the worker threads.
+	 * @param responder Writes the response to each request.
+	 * @param active Counted up and down as connections are served.
+	 */
+	ConnectionServer(String name, Responder responder, AtomicInteger active) {
+		this.name = name;
+		this.responder = responder;
+		this.active = active;
+	}
+
+	/**
+	 * Sets how many connections are served at once, and for how long. Must be called before
+	 * {@link #run(ServerSocketChannel, PrintWriter)}.
+	 * @param connections Connections served at once, each on its own worker thread.
+	 * @param drainSeconds Seconds to let connections in progress finish on shutdown.
+	 * @param keepAliveSeconds Seconds a connection may be idle, 0 to close every connection after one response.
+	 */
+	void setLimits(int connections, int drainSeconds, int keepAliveSeconds) {
+		maxConnections = Math.max(1, connections);
+		drainTimeout = Math.max(0, drainSeconds);
+		keepAliveTimeout = Math.max(0, keepAliveSeconds);
+	}
+
+	/**
+	 * Accepts connections, serving each on a worker thread. Returns once the server channel is closed after
+	 * {@link #stop()}, and the connections in progress have drained.
+	 * @param serverChannel Channel to accept connections from, bound.
+	 * @param writer Output for log messages.
+	 */
+	void run(ServerSocketChannel serverChannel, PrintWriter writer) {
+		AtomicInteger workerCount = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(maxConnections,
+			task -> new Thread(task, name + "-worker-" + workerCount.incrementAndGet()));
+		// Counts connections being served, so accepting stops at the cap and the kernel backlog holds the rest
+		Semaphore slots = new Semaphore(maxConnections);
+		try {
+			while (running) {
+				Socket socket;
+				try {
+					slots.acquire();
+					socket = serverChannel.accept().socket();
+				} catch (IOException | InterruptedException e) {
+					slots.release();
+					if (running) writer.printf("ERROR - Could not accept the connection.\n");
+					break;
+				}
+				active.incrementAndGet();
+				pool.execute(() -> {
+					try {
+						serve(socket, writer);
+					} finally {
+						active.decrementAndGet();
+						slots.release();
+					}
+				});
+			}
+		} finally {
+			drain(pool, writer);
+		}
+	}
+
+	/**
+	 * Stops taking requests, and closes the connections waiting for one. The caller then closes the server channel,
+	 * which ends {@link #run(ServerSocketChannel, PrintWriter)}.
+	 */
+	void stop() {
+		running = false;
+		for (Socket socket : idleSockets) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {}
+		}
+	}
+
+	/**
+	 * Lets the connections in progress finish, up to the drain timeout, then interrupts whatever is left.
+	 * @param pool Workers serving connections.
+	 * @param writer Output for log messages.
+	 */
+	private void drain(ExecutorService pool, PrintWriter writer) {
+		pool.shutdown();
+		writer.printf("Draining %d connections.\n", active.get());
+		writer.flush();
+		try {
+			if (!pool.awaitTermination(drainTimeout, TimeUnit.SECONDS)) {
+				writer.printf("Gave up on %d connections.\n", pool.shutdownNow().size() + active.get());
+			}
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Serves the requests of a connection in order, then closes it.
+	 * @param socket The accepted connection.
+	 * @param writer Output for log messages.
+	 */
+	private void serve(Socket socket, PrintWriter writer) {
+		try {
+			socket.setSoTimeout(Web.REQUEST_TIMEOUT * 1000);
+			// The header and body go out in separate writes, which must not wait on the client's delayed ack
+			socket.setTcpNoDelay(true);
+			InputStream in = socket.getInputStream();
+			ByteBuffer received = ByteBuffer.allocate(Web.READ_BUFFER_SIZE);
+			received.flip();
+			RequestParser parser = new RequestParser();
+			while (running) {
+				String raw = parser.next(received);
+				if (raw == null) {
+					// Everything received so far is used up, wait for more
+					received.clear();
+					idleSockets.add(socket);
+					int read;
+					try {
+						read = running ? in.read(received.array()) : -1;
+					} finally {
+						idleSockets.remove(socket);
+					}
+					if (read < 0) break;
+					received.limit(read);
+					continue;
+				}
+				WebRequest request = WebRequest.parse(raw);
+				responder.respond(request, socket, writer);
+				if (!request.keepAlive || keepAliveTimeout == 0) break;
+				socket.setSoTimeout(keepAliveTimeout * 1000);
+			}
+		} catch (SocketTimeoutException e) {
+			// Idle for too long, nothing to report
+		} catch (IOException | IllegalArgumentException e) {
+			if (running) writer.println("ERROR - There was an error writing to a connection.");
+		}
+
+		writer.flush();
+		try {
+			socket.close();
+		} catch (IOException ignored) {}
+	}
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the contents of served files ready to send, so hot files are not opened and read on every request.
+ * <br />
+ * Small files are read once into direct buffers, which are kept under a total byte budget, least recently used evicted
+ * first. Larger files are not cached, they are sent with {@link FileChannel#transferTo}, which already serves them from
+ * the page cache without copying them through user space.
+ * <br />
+ * Entries are keyed by {@link ContentCatalog} entry, and reloaded once the catalog has picked up a new version of the
+ * file, so checking for changes costs nothing per request.
+ */
+public class ContentCache {
+	/** Defaults for the byte budget of small files, and the largest file counted as small. */
+	static final long
+		DEFAULT_BUDGET = 64L * 1024 * 1024,
+		DEFAULT_MAX_SMALL = 1024 * 1024;
+
+	private final long budget;
+	private final long maxSmall;
+	/** Small files in access order, least recently used first. */
+	private final LinkedHashMap<String, Content> small = new LinkedHashMap<>(16, 0.75f, true);
+	/** Bytes held by small files. */
+	private long used;
+
+	/**
+	 * @param budget Most bytes held by small files at once.
+	 * @param maxSmall Largest file held in memory.
+	 */
+	public ContentCache(long budget, long maxSmall) {
+		this.budget = budget;
+		this.maxSmall = Math.min(maxSmall, budget);
+	}
+
+	/**
+	 * Gets the contents of a file, loading it if it is not cached or has changed.
+	 * @param file The file, held by the caller.
+	 * @return A buffer of the whole file, positioned at 0, for the caller alone. Null if the file is too large to cache.
+	 * @throws IOException Throws if the file could not be read, or is shorter than the catalog says.
+	 */
+	public ByteBuffer get(ContentCatalog.Entry file) throws IOException {
+		if (file.size > maxSmall) {
+			removeSmall(file.name); // In case it used to be small
+			return null;
+		}
+		Content content;
+		synchronized (this) {
+			content = small.get(file.name);
+		}
+		if (content != null && content.file == file) return content.buffer.duplicate();
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) file.size);
+		while (buffer.hasRemaining() && file.channel().read(buffer, buffer.position()) > 0);
+		// The header promises the whole file, so a file cut short since the scan must not be cached
+		if (buffer.hasRemaining()) throw new IOException("File shrank while reading.");
+		buffer.flip();
+		content = new Content(file, buffer.asReadOnlyBuffer());
+		putSmall(file.name, content);
+		return content.buffer.duplicate();
+	}
+
+	/**
+	 * Stores a small file, evicting the least recently used ones until it fits the budget.
+	 */
+	private synchronized void putSmall(String filename, Content content) {
+		Content replaced = small.put(filename, content);
+		if (replaced != null) used -= replaced.file.size;
+		used += content.file.size;
+		Iterator<Map.Entry<String, Content>> iterator = small.entrySet().iterator();
+		while (used > budget && iterator.hasNext()) {
+			used -= iterator.next().getValue().file.size;
+			iterator.remove();
+		}
+	}
+
+	private synchronized void removeSmall(String filename) {
+		Content removed = small.remove(filename);
+		if (removed != null) used -= removed.file.size;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d small files (%d/%d bytes)", small.size(), used, budget);
+	}
+
+	/** The contents of a file, and the version of the file they were read from. */
+	private static class Content {
+		final ContentCatalog.Entry file;
+		/** Read only. Duplicated for each request, so requests do not share a position. */
+		final ByteBuffer buffer;
+
+		Content(ContentCatalog.Entry file, ByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+}
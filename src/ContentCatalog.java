@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * The files a web server has, keyed by the path they are requested by. Each file is looked up once when scanned, so
+ * serving a request is a single hash lookup, with the size, modification time and content hash already known and the
+ * file already open.
+ * <br />
+ * Files come from the command line, and optionally every file under a content directory. Rescanning picks up added,
+ * changed and removed files while the server runs. A replaced file stays open until the requests using it are done.
+ */
+public class ContentCatalog {
+	/** Default for how often (in seconds) the content is rescanned. */
+	static final int DEFAULT_RESCAN_INTERVAL = 5;
+	/** File served for {@code /}. */
+	private static final String INDEX = "/index.txt";
+	private static final String HASH_ALGORITHM = "SHA-256";
+	/** Bytes in a hash. */
+	static final int HASH_SIZE = 32;
+	/** Bytes read at a time while hashing. */
+	private static final int HASH_CHUNK = 1024 * 1024;
+
+	private final String[] files;
+	/** Null to only serve the files given. */
+	private final Path directory;
+	/** Keyed by the requested path, with its leading {@code /}. */
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates an empty catalog. Call {@link #scan()} to fill it.
+	 * @param directory Directory whose files are all served, by their path relative to it. Null for none.
+	 * @param files Files to serve, by the name given.
+	 */
+	public ContentCatalog(Path directory, String... files) {
+		this.directory = directory;
+		this.files = files;
+	}
+
+	/**
+	 * Finds a file and holds it open, so it cannot be closed by a rescan while being sent.
+	 * @param request The requested path. {@code /} is the index.
+	 * @return The file, which must be {@link Entry#release() released} after sending. Null if there is no such file.
+	 */
+	public Entry acquire(String request) {
+		String name = request.equals("/") ? INDEX : request.startsWith("/") ? request : "/" + request;
+		Entry entry = entries.get(name);
+		if (entry == null || entry.acquire()) return entry;
+		// Replaced by a rescan in the meantime, which puts the new version in before retiring the old one
+		entry = entries.get(name);
+		return entry != null && entry.acquire() ? entry : null;
+	}
+
+	/**
+	 * Brings the catalog up to date with the files on disk. Only new or changed files are opened and hashed.
+	 * @return Summary of what changed, empty if nothing did.
+	 */
+	public synchronized String scan() {
+		Map<String, Path> found = new LinkedHashMap<>();
+		for (String file : files) found.put("/" + file, Paths.get(file));
+		if (directory != null) {
+			try (Stream<Path> paths = Files.walk(directory)) {
+				paths.filter(Files::isRegularFile).forEach(path ->
+					found.put("/" + directory.relativize(path).toString().replace(File.separatorChar, '/'), path));
+			} catch (IOException | RuntimeException e) {
+				return "Could not scan " + directory + ": " + e;
+			}
+		}
+
+		int added = 0, changed = 0, removed = 0, failed = 0;
+		for (Map.Entry<String, Path> file : found.entrySet()) {
+			Entry old = entries.get(file.getKey());
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file.getValue(), BasicFileAttributes.class);
+				if (old != null && old.size == attributes.size() && old.modified.equals(attributes.lastModifiedTime()))
+					continue;
+				entries.put(file.getKey(), Entry.open(file.getKey(), file.getValue(), attributes));
+				if (old == null) added++;
+				else changed++;
+			} catch (NoSuchFileException e) {
+				continue; // Removed below
+			} catch (IOException e) {
+				failed++; // Keep serving the old version, if there is one
+				continue;
+			}
+			if (old != null) old.retire();
+		}
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			String name = entry.getKey();
+			if (found.containsKey(name) && Files.exists(found.get(name))) continue;
+			entries.remove(name, entry.getValue());
+			entry.getValue().retire();
+			removed++;
+		}
+
+
+		if (added + changed + removed + failed == 0) return "";
+		return String.format("%d added, %d changed, %d removed, %d unreadable, %d files", added, changed, removed, failed, size());
+	}
+
+	/**
+	 * Hashes the contents of a file.
+	 * @param channel The file, only read with positional reads.
+	 * @param size Bytes to hash from its start.
+	 * @return The {@value #HASH_ALGORITHM} hash, {@link #HASH_SIZE} bytes.
+	 * @throws IOException Throws if the file could not be read.
+	 */
+	static byte[] hash(FileChannel channel, long size) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // Every jvm has it
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HASH_CHUNK, Math.max(1, size)));
+		long position = 0;
+		int read;
+		while (position < size && (read = channel.read(buffer, position)) > 0) {
+			buffer.flip();
+			digest.update(buffer);
+			buffer.clear();
+			position += read;
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * @return Number of files served.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (Entry entry : entries.values()) sb.append(entry).append(", ");
+		if (sb.length() > 1) sb.setLength(sb.length() - 2);
+		return sb.append(']').toString();
+	}
+
+	/** A served file, as it was when scanned. */
+	public static class Entry {
+		/** Requested path, with its leading {@code /}. */
+		public final String name;
+		public final Path path;
+		public final long size;
+		public final FileTime modified;
+		/** Hash of the contents, sent with partial responses so a client can tell if the file changed. */
+		public final byte[] hash;
+		/** Shared by every request, so only positional reads and transfers may be used. */
+		private final FileChannel channel;
+		/** Requests sending this file right now. */
+		private int users;
+		/** Set once a rescan has replaced or removed this file. */
+		private boolean retired;
+
+		private Entry(String name, Path path, long size, FileTime modified, byte[] hash, FileChannel channel) {
+			this.name = name;
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.channel = channel;
+		}
+
+		/**
+		 * Opens and hashes a file.
+		 */
+		static Entry open(String name, Path path, BasicFileAttributes attributes) throws IOException {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				return new Entry(name, path, attributes.size(), attributes.lastModifiedTime(), hash(channel, attributes.size()), channel);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return The open file. Only valid between {@link ContentCatalog#acquire(String)} and {@link #release()}.
+		 */
+		public FileChannel channel() {
+			return channel;
+		}
+
+		private synchronized boolean acquire() {
+			if (retired) return false;
+			users++;
+			return true;
+		}
+
+		/**
+		 * Lets go of the file once done sending it.
+		 */
+		public synchronized void release() {
+			if (--users == 0 && retired) close();
+		}
+
+		private synchronized void retire() {
+			retired = true;
+			if (users == 0) close();
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException ignored) {}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 4; i++) sb.append(String.format("%02x", hash[i]));
+			return String.format("%s (%d bytes, %s)", name.substring(1), size, sb);
+		}
+	}
+}
@@ -0,0 +1,481 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The objects an edge server fetched from its origin, kept on disk under a byte budget, so each is fetched once rather
+ * than on every request.
+ * <br />
+ * An object is readable as soon as its fetch starts: readers wait for the bytes they need to arrive, rather than for the
+ * whole object, and every request for an object still being fetched shares that one fetch. Objects are stored one file
+ * each, named by their encoded path, so the cache survives a restart. Once full, the least recently used, or least
+ * frequently used, object that nobody is reading is evicted. An object is passed through without being kept if it is
+ * larger than the whole budget, or if the objects being read or fetched leave no room for it. Each object keeps the hash
+ * the origin sent for it, the validator of partial responses, and those found on startup are hashed again.
+ * <br />
+ * An object passed through never touches the disk: it goes to the requests already waiting on it through a window of
+ * {@link #PASS_THROUGH_WINDOW} bytes in memory, so the fetch keeps pace with the slowest of them, and later requests
+ * fetch it again.
+ * <br />
+ * Objects are never revalidated against the origin: a file changed there is served as it was until its object is
+ * evicted, or removed from the directory while the server is stopped.
+ */
+class DiskCache {
+	/** Eviction policies. */
+	static final String
+		POLICY_LRU = "lru",
+		POLICY_LFU = "lfu";
+	/** Default byte budget. */
+	static final long DEFAULT_BUDGET = 1024L * 1024 * 1024;
+	/** Appended to the file of an object while it is fetched, such files are dropped on startup. */
+	private static final String PART_SUFFIX = ".part";
+	private static final String ENCODING = "UTF-8";
+	/** Most bytes of an object passed through that are held in memory for its readers. */
+	private static final int PASS_THROUGH_WINDOW = 1024 * 1024;
+
+	private final Path directory;
+	private final long budget;
+	private final String policy;
+	/** Keyed by the requested path, with its leading {@code /}. */
+	private final HashMap<String, Entry> entries = new HashMap<>();
+	/** Bytes of the objects kept, counting those being fetched at their full size. */
+	private long used;
+	/** Lookup counters. */
+	private long hits, misses;
+
+	/**
+	 * Opens a cache, picking up the objects already in its directory. Each one is read through to hash it.
+	 * @param directory Directory to keep objects in, created if missing.
+	 * @param budget Most bytes kept at once.
+	 * @param policy {@link #POLICY_LRU} or {@link #POLICY_LFU}.
+	 * @throws IOException Throws if the directory could not be created or read.
+	 * @throws IllegalArgumentException Throws if the policy is unknown.
+	 */
+	DiskCache(Path directory, long budget, String policy) throws IOException {
+		if (!policy.equals(POLICY_LRU) && !policy.equals(POLICY_LFU))
+			throw new IllegalArgumentException("Unknown cache policy: " + policy);
+		this.directory = directory;
+		this.budget = Math.max(0, budget);
+		this.policy = policy;
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(PART_SUFFIX)) {
+					Files.deleteIfExists(file); // Cut short by a crash
+					continue;
+				}
+				if (!Files.isRegularFile(file)) continue;
+				Entry entry = new Entry(URLDecoder.decode(name, ENCODING), file, FileChannel.open(file, StandardOpenOption.READ));
+				entry.size = entry.total = entry.filled = entry.channel.size();
+				entry.validator = ContentCatalog.hash(entry.channel, entry.size);
+				entry.done = true;
+				entry.lastUsed = System.nanoTime();
+				entries.put(entry.key, entry);
+				used += entry.size;
+			}
+		}
+		synchronized (this) {
+			evict();
+		}
+	}
+
+	/**
+	 * Finds an object and holds it, so it is not evicted while being read. Counts as a use of the object.
+	 * @param key The requested path.
+	 * @param fill Called once, outside any lock, with the entry of an object that is not cached, to start fetching it.
+	 * The fetch goes through {@link #begin}, {@link Entry#write}, then {@link #complete} or {@link #fail}.
+	 * @return The entry, which must be {@link Entry#release() released} once read. It may still be filling.
+	 * @throws IOException Throws if the file of a new entry could not be created.
+	 */
+	Entry acquire(String key, Consumer<Entry> fill) throws IOException {
+		Entry entry;
+		boolean created = false;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null) {
+				hits++;
+			} else {
+				misses++;
+				Path file = directory.resolve(URLEncoder.encode(key, ENCODING) + PART_SUFFIX);
+				entry = new Entry(key, file, FileChannel.open(file, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE));
+				entries.put(key, entry);
+				created = true;
+			}
+			entry.acquire();
+		}
+		if (created) fill.accept(entry);
+		return entry;
+	}
+
+	/**
+	 * Starts filling an object, once its size is known. Makes room for it if evicting objects nobody is reading can,
+	 * otherwise it is passed through to the requests holding it, and dropped from the cache straight away.
+	 * @param entry The entry being filled.
+	 * @param size Size of the object.
+	 * @param validator Hash of the object, as the origin sent it.
+	 */
+	void begin(Entry entry, long size, byte[] validator) {
+		boolean passThrough;
+		synchronized (this) {
+			// Objects only stop being evictable while the cache is held, so evicting is sure to free this much
+			passThrough = used + size - evictable() > budget;
+			if (!passThrough) {
+				entry.size = size;
+				used += size;
+				evict();
+			}
+		}
+		// Before it is dropped, so its readers never see its file closed without knowing to read from memory
+		entry.begin(size, validator, passThrough);
+		// Bytes are only held for the readers it has now, a later one would need those already sent
+		if (passThrough) remove(entry);
+	}
+
+	/**
+	 * Finishes filling an object, which is then served straight from its file.
+	 * @param entry The entry, with every byte written.
+	 * @throws IOException Throws if its file could not be renamed, the fill should then {@link #fail} instead.
+	 */
+	void complete(Entry entry) throws IOException {
+		if (!entry.isPassThrough()) {
+			String name = entry.file.getFileName().toString();
+			Path file = entry.file.resolveSibling(name.substring(0, name.length() - PART_SUFFIX.length()));
+			// Readers hold the file open, so it can be renamed under them
+			Files.move(entry.file, file, StandardCopyOption.REPLACE_EXISTING);
+			entry.file = file;
+		}
+		entry.complete();
+	}
+
+	/**
+	 * Gives up on filling an object. Readers waiting on it are woken up, and the next request fetches it again.
+	 * @param entry The entry being filled.
+	 * @param cause Why, null if the origin does not have the object.
+	 * @param notFound True if the origin does not have the object, so readers answer that it was not found.
+	 */
+	void fail(Entry entry, IOException cause, boolean notFound) {
+		remove(entry);
+		entry.fail(cause, notFound);
+	}
+
+	/**
+	 * Drops an object from the cache. Readers holding it keep reading it, its file is deleted once they are done.
+	 */
+	private synchronized void remove(Entry entry) {
+		if (entries.remove(entry.key, entry)) used -= entry.size;
+		entry.retire();
+	}
+
+	/**
+	 * @return Bytes of the objects nobody is reading.
+	 */
+	private long evictable() {
+		long bytes = 0;
+		for (Entry entry : entries.values()) if (entry.isEvictable()) bytes += entry.size;
+		return bytes;
+	}
+
+	/**
+	 * Evicts objects nobody is reading until the cache is within its budget, or there are none left to evict.
+	 */
+	private void evict() {
+		while (used > budget) {
+			Entry victim = null;
+			for (Entry entry : entries.values()) {
+				if (!entry.isEvictable()) continue;
+				if (victim == null || (policy.equals(POLICY_LFU)
+					? entry.uses < victim.uses || entry.uses == victim.uses && entry.lastUsed - victim.lastUsed < 0
+					: entry.lastUsed - victim.lastUsed < 0))
+					victim = entry;
+			}
+			if (victim == null) return; // Everything is in use, the next fill tries again
+			remove(victim);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d objects, %.1f of %.1f MB, %s eviction, %d hits, %d misses", entries.size(), used / 1e6,
+			budget / 1e6, policy, hits, misses);
+	}
+
+	/**
+	 * One object, complete or still filling. Waiting readers are woken up by each write. An object passed through is held
+	 * in memory instead of its file, from the first byte a reader still has to send.
+	 */
+	static class Entry {
+		/** Requested path, with its leading {@code /}. */
+		final String key;
+		/** Shared by every reader and the filler, so only positional reads, writes and transfers may be used. */
+		private final FileChannel channel;
+		private Path file;
+		/** Set before the entry is shared, then guarded by the cache. */
+		private long size;
+		/** Guarded by the cache, for eviction. */
+		private long uses, lastUsed;
+		/** Guarded by the entry. -1 until the origin answers. */
+		private long total = -1, filled;
+		private byte[] validator;
+		private boolean passThrough, done, notFound;
+		/** Guarded by the entry. Bytes of an object passed through, in order, the first one at {@code windowStart}. */
+		private final ArrayDeque<ByteBuffer> window = new ArrayDeque<>();
+		private long windowStart;
+		/** Guarded by the entry. Next byte to send of each reader of an object passed through. */
+		private final List<long[]> cursors = new ArrayList<>();
+		private IOException failure;
+		/** Readers of this entry right now. */
+		private int users;
+		private boolean retired;
+
+		private Entry(String key, Path file, FileChannel channel) {
+			this.key = key;
+			this.file = file;
+			this.channel = channel;
+		}
+
+		/**
+		 * @return True if the object was complete, so the request was served without waiting on the origin.
+		 */
+		synchronized boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Waits for the origin to answer.
+		 * @return Size of the object, -1 if the origin does not have it.
+		 * @throws IOException Throws if the fetch failed.
+		 */
+		synchronized long awaitTotal() throws IOException {
+			while (total < 0 && !notFound && failure == null) await();
+			if (failure != null) throw failure;
+			return notFound ? -1 : total;
+		}
+
+		/**
+		 * @return Hash of the object. Only valid once {@link #awaitTotal()} has returned its size.
+		 */
+		synchronized byte[] validator() {
+			return validator;
+		}
+
+		private synchronized boolean isPassThrough() {
+			return passThrough;
+		}
+
+		/**
+		 * Sends part of the object, waiting for the bytes still being fetched. Only valid between
+		 * {@link DiskCache#acquire} and {@link #release()}, once {@link #awaitTotal()} has returned its size.
+		 * @param position Offset of the first byte.
+		 * @param end Offset past the last byte, at most the size of the object.
+		 * @param target Where to send the bytes, in blocking mode.
+		 * @throws IOException Throws if the fetch failed first, or the bytes could not be sent.
+		 */
+		void transferTo(long position, long end, WritableByteChannel target) throws IOException {
+			if (isPassThrough()) {
+				stream(position, end, target);
+				return;
+			}
+			while (position < end) {
+				long filled = Math.min(awaitFilled(position), end);
+				while (position < filled) {
+					long sent = channel.transferTo(position, filled - position, target);
+					// Blocking, so nothing sent means the file is shorter than what was written to it
+					if (sent <= 0) throw new IOException("Cached file shrank while sending.");
+					position += sent;
+				}
+			}
+		}
+
+		/**
+		 * Sends part of an object passed through, from memory. Bytes are dropped once every reader has sent them.
+		 */
+		private void stream(long position, long end, WritableByteChannel target) throws IOException {
+			long[] cursor = {position};
+			synchronized (this) {
+				if (position < windowStart) throw new IOException("Passed through bytes are no longer held.");
+				cursors.add(cursor);
+			}
+			try {
+				while (cursor[0] < end) {
+					ByteBuffer bytes;
+					synchronized (this) {
+						awaitFilled(cursor[0]);
+						bytes = held(cursor[0], end);
+					}
+					// A view of bytes that stay put until this reader moves past them, so it is sent outside the lock
+					int count = bytes.remaining();
+					while (bytes.hasRemaining()) target.write(bytes);
+					synchronized (this) {
+						cursor[0] += count;
+						trim();
+						notifyAll();
+					}
+				}
+			} finally {
+				synchronized (this) {
+					cursors.remove(cursor);
+					trim();
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * @return A view of the held bytes from {@code position}, up to the end of their chunk or {@code end}. Called with
+		 * the entry held, and {@code position} written but not dropped.
+		 */
+		private ByteBuffer held(long position, long end) {
+			long start = windowStart;
+			for (ByteBuffer chunk : window) {
+				if (position < start + chunk.remaining()) {
+					ByteBuffer view = chunk.duplicate();
+					view.limit((int) Math.min(chunk.remaining(), end - start)).position((int) (position - start));
+					return view;
+				}
+				start += chunk.remaining();
+			}
+			throw new IllegalStateException("Byte " + position + " is not held.");
+		}
+
+		/**
+		 * Drops the held bytes every reader has sent. Called with the entry held.
+		 */
+		private void trim() {
+			// A reader that has not said where it starts yet may need any of them
+			if (cursors.size() < users) return;
+			long needed = filled;
+			for (long[] cursor : cursors) needed = Math.min(needed, cursor[0]);
+			while (!window.isEmpty() && windowStart + window.peek().remaining() <= needed)
+				windowStart += window.poll().remaining();
+		}
+
+		/**
+		 * Waits for a byte of the object to be written.
+		 * @param position Offset of the byte.
+		 * @return Bytes written from the start, past {@code position}.
+		 * @throws IOException Throws if the fetch failed first.
+		 */
+		private synchronized long awaitFilled(long position) throws IOException {
+			while (filled <= position && failure == null) await();
+			if (filled <= position) throw failure;
+			return filled;
+		}
+
+		private void await() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		/**
+		 * Appends bytes fetched from the origin. For an object passed through, waits for its readers to make room.
+		 * @param buffer The bytes.
+		 * @throws IOException Throws if the file could not be written.
+		 */
+		void write(ByteBuffer buffer) throws IOException {
+			long position;
+			synchronized (this) {
+				if (passThrough) {
+					hold(buffer);
+					return;
+				}
+				position = filled;
+			}
+			while (buffer.hasRemaining()) position += channel.write(buffer, position);
+			synchronized (this) {
+				filled = position;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Keeps bytes of an object passed through in memory, for its readers. Called with the entry held.
+		 */
+		private void hold(ByteBuffer buffer) throws InterruptedIOException {
+			while (filled - windowStart >= PASS_THROUGH_WINDOW && users > 0) await();
+			ByteBuffer chunk = ByteBuffer.allocate(buffer.remaining());
+			chunk.put(buffer).flip();
+			window.add(chunk);
+			filled += chunk.remaining();
+			trim(); // Drops it right away if every reader is gone
+			notifyAll();
+		}
+
+		private synchronized void begin(long size, byte[] validator, boolean passThrough) {
+			total = size;
+			this.validator = validator;
+			this.passThrough = passThrough;
+			notifyAll();
+		}
+
+		private synchronized void complete() {
+			done = true;
+			notifyAll();
+		}
+
+		private synchronized void fail(IOException cause, boolean notFound) {
+			this.notFound = notFound;
+			failure = notFound ? null : cause != null ? cause : new IOException("Fetch failed.");
+			notifyAll();
+		}
+
+		private synchronized boolean isEvictable() {
+			return done && users == 0;
+		}
+
+		/** Called with the cache held. */
+		private void acquire() {
+			uses++;
+			lastUsed = System.nanoTime();
+			synchronized (this) {
+				users++;
+			}
+		}
+
+		/**
+		 * Lets go of the object once done reading it.
+		 */
+		synchronized void release() {
+			if (--users == 0 && retired) close();
+			// One reader less to keep bytes of an object passed through for
+			trim();
+			notifyAll();
+		}
+
+		/**
+		 * Deletes the file straight away, readers that hold it open can still read it, and closes it once they are done.
+		 */
+		private synchronized void retire() {
+			retired = true;
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException ignored) {}
+			if (users == 0) close();
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException ignored) {}
+		}
+	}
+}
@@ -1,11 +1,24 @@
 import java.io.*;
 import java.net.*;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
- * A DNS server. Initial records are set via the constructor.
+ * A DNS server. Initial records are set via the constructor. Records loaded from a file are reloaded when the file
+ * changes, or when {@code reload} is typed into the console.
  * <br />
  * Supported record types:
  * <ul>
@@ -14,18 +27,29 @@ import java.util.Scanner;
  *     <li>CNAME</li>
  *     <li>NS</li>
  * </ul>
+ * A name may have several A records, ordered for each client by a {@link LoadBalancer} fed by reports from the web
+ * servers.
+ * <br />
  * Created by Frank on 2016-12-03.
  */
 public class Dns {
 
 	// A bit overkill, but ehh
 	private static final int PACKET_SIZE = 1026;
-	private final static int REQUEST_TIMEOUT = 3000;
 
-	/** Protocol determining if the packet sent was a resonce or a request. */
-	private static final byte
-		DNS_RESPONSE = 1,
-		DNS_REQUEST = 2;
+	/** Packet used by each thread to send, so nothing needs to be allocated per packet. See {@link DnsMessage} for the format. */
+	private static final ThreadLocal<DatagramPacket> SEND_PACKET =
+		ThreadLocal.withInitial(() -> new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE));
+	/** Same as above, for the nio transport. */
+	private static final ThreadLocal<ByteBuffer> SEND_BUFFER =
+		ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(PACKET_SIZE));
+
+	/** Transport modes. */
+	static final String
+		TRANSPORT_SOCKET = "socket",
+		TRANSPORT_NIO = "nio";
+	/** Most datagrams read from a channel before checking the others. */
+	private static final int RECEIVE_BATCH = 64;
 
 	/** Record types. */
 	protected final static String
@@ -38,17 +62,58 @@ public class Dns {
 	/** Set port for entire lifetime of the server instance. */
 	private final int PORT;
 
-	private HashMap<String, HashMap<String, String>> records = new HashMap<>();
-	private HashMap<String, String> requests = new HashMap<>();
+	/** Default number of names kept in the answer cache. */
+	static final int DEFAULT_CACHE_SIZE = 10000;
+	/** Default ttl (in seconds) for remembering that a name could not be resolved. */
+	static final int DEFAULT_NEGATIVE_TTL = 60;
+	/** How often (in seconds) cache statistics are logged. */
+	private static final int STATS_INTERVAL = 60;
+	/** Defaults for NS queries: wait before the first retry (ms), give up after (ms), and max outstanding at once. */
+	static final int
+		DEFAULT_UPSTREAM_TIMEOUT = 400,
+		DEFAULT_UPSTREAM_DEADLINE = 2500,
+		DEFAULT_MAX_PENDING = 4096;
+	/** How often (in ms) outstanding NS queries are checked for timeouts. */
+	private static final int SWEEP_INTERVAL = 50;
+	/** Default for how often (in seconds) the zone file is checked for changes. */
+	static final int DEFAULT_RELOAD_INTERVAL = 2;
+	/** Console command to reload the zone file. */
+	private static final String COMMAND_RELOAD = "reload";
+
+	private final ZoneStore records;
+	/** Answers received for NS queries. */
+	private DnsCache cache = new DnsCache(DEFAULT_CACHE_SIZE);
+	/** Orders A records for clients. */
+	private LoadBalancer balancer = new LoadBalancer(LoadBalancer.POLICY_FIRST);
+	/** Ttl (in seconds) of cached NONE answers. */
+	private int negativeTtl = DEFAULT_NEGATIVE_TTL;
+	/** Requests waiting on an NS query, keyed by the transaction id of that query. */
+	private final ConcurrentHashMap<Integer, PendingQuery> requests = new ConcurrentHashMap<>();
+	/** The same queries, keyed by the url asked for. Used to join requests for a url that is already being resolved. */
+	private final ConcurrentHashMap<String, PendingQuery> inFlight = new ConcurrentHashMap<>();
+	/** Number of threads handling received packets. */
+	private int workers = 1;
+	/** Seconds between checks of the zone file, 0 to only reload on command. */
+	private int reloadInterval = DEFAULT_RELOAD_INTERVAL;
+	/** How packets are received and sent, see {@link #setTransport(String, int)}. */
+	private String transportMode = TRANSPORT_SOCKET;
+	private int channels = 1;
+	/** Resolved addresses of name servers, keyed by their {@code ip[:port]} value. */
+	private final ConcurrentHashMap<String, InetSocketAddress> serverAddresses = new ConcurrentHashMap<>();
+	/** NS query limits, see the defaults above. */
+	private int
+		upstreamTimeout = DEFAULT_UPSTREAM_TIMEOUT,
+		upstreamDeadline = DEFAULT_UPSTREAM_DEADLINE,
+		maxPending = DEFAULT_MAX_PENDING;
 
 	/**
-	 * Creates a new DNS server, initializing records from a hash-map.
+	 * Creates a new DNS server, initializing records from an index.
 	 * @param port Port to listen and send on.
 	 * @param records Records to initilize with.
 	 */
-	Dns(int port, HashMap<String, HashMap<String, String>> records) {
+	Dns(int port, ZoneIndex records) {
 		PORT = port;
-		this.records = records;
+		this.records = new ZoneStore(records);
 	}
 
 	/**
@@ -59,53 +124,144 @@ public class Dns {
 	 */
 	Dns(int port, String filename) throws FileNotFoundException {
 		PORT = port;
-		records = readRecordsFromFile(filename);
+		records = new ZoneStore(filename);
 		System.out.println("Loaded files: " + records);
 	}
 
 	/**
-	 * Reads a hashmap representing loaded records from a file.
-	 * @param filename Filename to load from.
-	 * @return A HashMap populated records.
-	 * @throws FileNotFoundException Throws if it cannot find the file specified.
+	 * Sets how often the zone file is checked for changes. Must be called before {@link #run()}.
+	 * @param seconds Seconds between checks, 0 to only reload when the {@code reload} command is typed.
 	 */
-	private HashMap<String, HashMap<String, String>> readRecordsFromFile(String filename) throws FileNotFoundException {
-		HashMap<String, HashMap<String, String>> records = new HashMap<>();
-		records.put(DNS_TYPE_V, new HashMap<>());
-		records.put(DNS_TYPE_A, new HashMap<>());
-		records.put(DNS_TYPE_CNAME, new HashMap<>());
-		records.put(DNS_TYPE_NS, new HashMap<>());
+	void setReloadInterval(int seconds) {
+		reloadInterval = Math.max(0, seconds);
+	}
 
-		Scanner scanner = new Scanner(new File(filename));
-		while (scanner.hasNext()) {
-			String
-				key = scanner.next(),
-				type = scanner.next(),
-				value = scanner.next();
-			if (records.containsKey(type))
-				records.get(type).put(key, value);
-		}
-		scanner.close();
-		return records;
+	/**
+	 * Sets how names with several A records are answered. Must be called before {@link #run()}.
+	 * @param policy One of the {@link LoadBalancer} policies.
+	 * @throws IllegalArgumentException Throws if the policy is unknown.
+	 */
+	void setPolicy(String policy) {
+		balancer = new LoadBalancer(policy);
+	}
+
+	/**
+	 * Sets the maximum number of answers kept from NS queries. Must be called before {@link #run()}.
+	 * @param size Number of names to cache.
+	 */
+	void setCacheSize(int size) {
+		cache = new DnsCache(size);
+	}
+
+	/**
+	 * Sets how long names that could not be resolved are remembered for. Must be called before {@link #run()}.
+	 * @param ttl Ttl in seconds, 0 disables negative caching.
+	 */
+	void setNegativeTtl(int ttl) {
+		negativeTtl = Math.max(0, ttl);
+	}
+
+	/**
+	 * Sets the limits for queries sent to other servers. Must be called before {@link #run()}.
+	 * @param timeout Milliseconds to wait before retrying, doubled after every retry.
+	 * @param deadline Milliseconds after which the query is given up on, and NONE is sent. Should be less than the
+	 *                 client's own timeout.
+	 * @param maxPending Maximum number of queries outstanding at once. Requests beyond this are answered with NONE.
+	 */
+	void setUpstreamLimits(int timeout, int deadline, int maxPending) {
+		this.upstreamTimeout = Math.max(1, timeout);
+		this.upstreamDeadline = Math.max(this.upstreamTimeout, deadline);
+		this.maxPending = Math.max(1, Math.min(maxPending, 0xFFFF));
+	}
+
+	/**
+	 * @return The cache of answers received from other servers, for reading statistics.
+	 */
+	DnsCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets the number of threads used to handle received packets. Must be called before {@link #run()}.
+	 * @param workers Number of worker threads, 1 handles every packet in the order it was received.
+	 */
+	void setWorkers(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Sets how packets are received and sent. Must be called before {@link #run()}.
+	 * @param mode {@link #TRANSPORT_SOCKET} for a blocking socket, or {@link #TRANSPORT_NIO} for non-blocking channels.
+	 * @param channels Number of channels to bind in nio mode. More than one needs SO_REUSEPORT, and each gets its own
+	 *                 receiving thread.
+	 */
+	void setTransport(String mode, int channels) {
+		this.transportMode = TRANSPORT_NIO.equalsIgnoreCase(mode) ? TRANSPORT_NIO : TRANSPORT_SOCKET;
+		this.channels = Math.max(1, channels);
 	}
 
 	/**
 	 * Starts up the dns server, and keeps it in an endless, blocking loop. During this time, it will handle all inbound requests and responces.
+	 * Packets are received on this thread, then handed off to the worker pool to be handled.
 	 */
 	void run() {
+		final ExecutorService pool = Executors.newFixedThreadPool(workers);
+		final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor();
+		try {
+			if (transportMode.equals(TRANSPORT_NIO))
+				runChannels(pool, maintenance);
+			else
+				runSocket(pool, maintenance);
+		} finally {
+			pool.shutdown();
+			maintenance.shutdown();
+		}
+	}
+
+	/**
+	 * Starts the periodic maintenance tasks, and the console that listens for commands.
+	 * @param maintenance Scheduler to run them on.
+	 * @param transport Transport to send retries and timeouts on.
+	 */
+	private void startMaintenance(ScheduledExecutorService maintenance, Transport transport) {
+		maintenance.scheduleAtFixedRate(this::logStats, STATS_INTERVAL, STATS_INTERVAL, TimeUnit.SECONDS);
+		maintenance.scheduleWithFixedDelay(() -> sweepRequests(transport), SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+		if (reloadInterval > 0)
+			maintenance.scheduleWithFixedDelay(records::reloadIfChanged, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+
+		// Reloads are built on this thread, never on the ones serving requests
+		Thread console = new Thread(() -> {
+			Scanner in = new Scanner(System.in);
+			while (in.hasNextLine())
+				if (in.nextLine().trim().equalsIgnoreCase(COMMAND_RELOAD)) records.reload();
+		}, "dns-console");
+		console.setDaemon(true);
+		console.start();
+	}
+
+	/**
+	 * Receives packets from a blocking socket, forever.
+	 * @param pool Workers to handle the packets.
+	 * @param maintenance Scheduler for maintenance tasks.
+	 */
+	private void runSocket(ExecutorService pool, ScheduledExecutorService maintenance) {
 		DatagramSocket socket;
 
 		try { // Init socket
 			socket = new DatagramSocket(PORT);
-			System.out.printf("Server started on port: %d\n", PORT);
+			System.out.printf("Server started on port: %d with %d worker(s)\n", PORT, workers);
 			System.out.flush();
 		} catch (SocketException e) {
 			throw new IllegalStateException("ERROR - Could not open socket.");
 		}
 
+		final Transport transport = (message, address) -> send(message, address, socket);
+		startMaintenance(maintenance, transport);
 		final byte[] BUFF = new byte[PACKET_SIZE];
+		final ByteBuffer buffer = ByteBuffer.wrap(BUFF);
+		final DatagramPacket receivedPacket = new DatagramPacket(BUFF, BUFF.length);
 		while (true) {
-			DatagramPacket receivedPacket = new DatagramPacket(BUFF, BUFF.length);
+			receivedPacket.setLength(BUFF.length);
 			try {
 				socket.receive(receivedPacket);
 			} catch (IOException e) {
@@ -113,37 +269,193 @@ public class Dns {
 				throw new IllegalStateException("ERROR - Could not receive packet.");
 			}
 
-			switch (BUFF[0]) {
-				case DNS_REQUEST:
-					System.out.printf("\nGot a request for: %s from: %s\n", parseUrl(BUFF), receivedPacket.getAddress().toString());
-					handleRequest(parseUrl(BUFF), receivedPacket, socket);
-					break;
-				case DNS_RESPONSE:
-					System.out.printf("\nGot a response for: %s from: %s\n", parseUrl(BUFF), receivedPacket.getAddress().toString());
-					handleResponse(parseUrl(BUFF), parseType(BUFF), parseValue(BUFF), socket);
+			buffer.clear();
+			buffer.limit(receivedPacket.getLength());
+			dispatch(buffer, (InetSocketAddress) receivedPacket.getSocketAddress(), transport, pool);
+		}
+	}
+
+	/**
+	 * Receives packets from non-blocking channels, forever. Each channel is drained by its own thread, which reads up to
+	 * {@link #RECEIVE_BATCH} datagrams every time it wakes up. Replies are sent straight from the worker threads.
+	 * @param pool Workers to handle the packets.
+	 * @param maintenance Scheduler for maintenance tasks.
+	 */
+	private void runChannels(ExecutorService pool, ScheduledExecutorService maintenance) {
+		List<DatagramChannel> opened = new ArrayList<>();
+		try {
+			for (int i = 0; i < channels; i++) {
+				DatagramChannel channel = DatagramChannel.open();
+				SocketOption<Boolean> reusePort = reusePortOption(channel);
+				if (reusePort != null && channels > 1) {
+					channel.setOption(reusePort, true);
+				} else if (i > 0) {
+					System.out.println("SO_REUSEPORT is not supported, only binding one channel.");
+					channel.close();
 					break;
+				}
+				opened.add(channel);
+				channel.bind(new InetSocketAddress(PORT));
+				channel.configureBlocking(false);
+			}
+			System.out.printf("Server started on port: %d with %d channel(s) and %d worker(s)\n", PORT, opened.size(), workers);
+			System.out.flush();
+		} catch (IOException e) {
+			for (DatagramChannel channel : opened) try {channel.close();} catch (IOException ignored) {}
+			throw new IllegalStateException("ERROR - Could not open channel.");
+		}
+
+		startMaintenance(maintenance, channelTransport(opened.get(0)));
+		for (int i = 1; i < opened.size(); i++) {
+			final DatagramChannel channel = opened.get(i);
+			Thread receiver = new Thread(() -> receiveChannel(channel, pool), "dns-receiver-" + i);
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+		receiveChannel(opened.get(0), pool);
+	}
+
+	/**
+	 * Drains a non-blocking channel every time it has datagrams ready, forever.
+	 * @param channel The channel to read from.
+	 * @param pool Workers to handle the packets.
+	 */
+	private void receiveChannel(DatagramChannel channel, ExecutorService pool) {
+		final Transport transport = channelTransport(channel);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+		try (Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			while (true) {
+				if (selector.select() == 0) continue;
+				selector.selectedKeys().clear();
+				for (int i = 0; i < RECEIVE_BATCH; i++) {
+					buffer.clear();
+					SocketAddress from = channel.receive(buffer);
+					if (from == null) break; // Drained
+					buffer.flip();
+					dispatch(buffer, (InetSocketAddress) from, transport, pool);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("ERROR - Could not receive packet.");
+		}
+	}
 
+	/**
+	 * @param channel A channel, not bound yet.
+	 * @return The SO_REUSEPORT option if the platform supports it (Java 9+ on Linux/BSD), null otherwise.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption(DatagramChannel channel) {
+		for (SocketOption<?> option : channel.supportedOptions())
+			if (option.name().equals("SO_REUSEPORT")) return (SocketOption<Boolean>) option;
+		return null;
+	}
+
+	/**
+	 * @param channel A non-blocking channel.
+	 * @return A transport that sends on the channel, from this thread's direct buffer.
+	 */
+	private static Transport channelTransport(DatagramChannel channel) {
+		return (message, address) -> {
+			ByteBuffer buff = SEND_BUFFER.get();
+			buff.clear();
+			message.encode(buff);
+			buff.flip();
+			if (channel.send(buff, address) == 0)
+				System.out.printf("Send buffer full, dropped packet to: %s\n", address);
+		};
+	}
+
+	/**
+	 * Decodes a received packet, then hands it off to a worker. Decoding happens on the receiving thread since the
+	 * buffer is reused for the next packet. Load reports are cheap enough to take in right away.
+	 * @param buffer Holds the packet, from its position to its limit.
+	 * @param from Address the packet came from. Replies are sent back to this same object.
+	 * @param transport Transport the packet was received on.
+	 * @param pool Workers to handle the packet.
+	 */
+	private void dispatch(ByteBuffer buffer, InetSocketAddress from, Transport transport, ExecutorService pool) {
+		final DnsMessage message;
+		try {
+			if (buffer.hasRemaining() && buffer.get(buffer.position()) == DnsMessage.LOAD_REPORT) {
+				balancer.report(LoadReport.decode(buffer), from.getAddress());
+				return;
 			}
-			Arrays.fill(BUFF, (byte) 0);
+			message = DnsMessage.decode(buffer);
+		} catch (IllegalArgumentException e) {
+			return; // Not one of ours
+		}
+		pool.execute(() -> handlePacket(message, from, transport));
+	}
+
+	/**
+	 * Logs the cache counters.
+	 */
+	private void logStats() {
+		System.out.printf("\nCache: %s\nServers: %s\n", cache, balancer);
+	}
+
+	/**
+	 * Retries NS queries that have not been answered in time, moving on to the next name server each time. Queries past
+	 * their deadline are dropped, and their waiting requests are sent NONE.
+	 * @param transport Transport to send retries and responses on.
+	 */
+	private void sweepRequests(Transport transport) {
+		try {
+			long now = System.currentTimeMillis();
+			for (PendingQuery query : requests.values()) {
+				if (now >= query.deadline) {
+					if (!requests.remove(query.id, query)) continue; // Answered in the meantime
+					inFlight.remove(query.url, query);
+					System.out.printf("\nGave up on request #%d for: %s\n", query.id, query.url);
+					// Not cached, since the name may well exist once the server is reachable again
+					List<DnsRecord> none = none(0);
+					for (RequestRecord requestRecord : query.complete())
+						sendResponse(requestRecord, none, transport);
+				} else if (now >= query.nextAttempt) {
+					query.attempt++;
+					query.nextAttempt = now + ((long) upstreamTimeout << Math.min(query.attempt, 16));
+					System.out.printf("\nRetrying request #%d for: %s\n", query.id, query.url);
+					sendQuery(query, transport);
+				}
+			}
+		} catch (RuntimeException e) {
+			// Never let an error stop future sweeps
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handles a single received packet. Safe to call from any number of threads.
+	 * @param message The decoded packet.
+	 * @param address Address the packet came from.
+	 * @param transport Transport the packet was received on.
+	 */
+	private void handlePacket(DnsMessage message, InetSocketAddress address, Transport transport) {
+		switch (message.kind) {
+			case DnsMessage.REQUEST:
+				System.out.printf("\nGot a request for: %s from: %s\n", message.name, address.getAddress());
+				handleRequest(message.name, message.id, address, transport);
+				break;
+			case DnsMessage.RESPONSE:
+				System.out.printf("\nGot a response for: %s from: %s\n", message.name, address.getAddress());
+				handleResponse(message, address, transport);
+				break;
 		}
 	}
 
 	/**
 	 * Handles a request recived from a client.
 	 * @param requestedUrl The url requested.
-	 * @param requestPacket The packet of the request.
-	 * @param socket The server socket.
+	 * @param id Transaction id of the request, echoed back in the response.
+	 * @param address Address of the client.
+	 * @param transport Transport the packet was received on.
 	 */
-	private void handleRequest(String requestedUrl, DatagramPacket requestPacket, DatagramSocket socket) {
-		String requestIp = requestPacket.getAddress().toString();
-		if (requestIp.startsWith("/")) requestIp = requestIp.substring(1);
-		processRequest(
-			requestedUrl,
-			// Here we serialize the request data, so we can easily store it if we need to wait for another response
-			// 			format:   originalRequestedUrl:sourceIp:sourcePort
-			String.format("%s:%s:%d", requestedUrl, requestIp, requestPacket.getPort()),
-			socket
-		);
+	private void handleRequest(String requestedUrl, int id, InetSocketAddress address, Transport transport) {
+		// Keep the request data, so we can resume it if we need to wait for another response
+		processRequest(requestedUrl, new RequestRecord(requestedUrl, address, id), transport);
 	}
 
 	/**
@@ -151,269 +463,323 @@ public class Dns {
 	 * to be resumed when the NS query has returned.
 	 * @param requestedUrl Url currently being looked for.
 	 * @param requestRecord Original request information.
-	 * @param socket The socket to send responses to requests and send/receive NS queries.
+	 * @param transport Transport to send responses to requests and NS queries on.
 	 */
-	private void processRequest(String requestedUrl, String requestRecord, DatagramSocket socket) {
-		String[] result = localUrlLookup(requestedUrl);
+	private void processRequest(String requestedUrl, RequestRecord requestRecord, Transport transport) {
+		List<DnsRecord> answers = localUrlLookup(requestedUrl);
 
-		// Parse the request record (from the format:   originalRequestedUrl:sourceIp:sourcePort
-		final String[] requestRecordTokens = requestRecord.split(":");
-		final String
-			originalUrlRequest = requestRecordTokens[0],
-			requestIp = requestRecordTokens[1];
-		final int requestPort = Integer.parseInt(requestRecordTokens[2]);
-
-		if (result == null) {
+		if (answers == null) {
 			// If the url cannot be resolved, send a null responce so the client does not need to timeout
-			sendResponse(originalUrlRequest, DNS_TYPE_NONE, DNS_TYPE_NONE, requestIp, requestPort, socket);
+			List<DnsRecord> none = none(negativeTtl);
+			cache.put(requestedUrl, none);
+			sendResponse(requestRecord, none, transport);
 			return;
 		}
 
-		switch (result[0]) {
+		DnsRecord result = answers.get(0);
+		switch (result.type) {
+			case DNS_TYPE_NONE:
+				System.out.printf("%s -NONE->\n", requestedUrl);
+				sendResponse(requestRecord, answers, transport);
+				break;
 			case DNS_TYPE_A:
-				System.out.printf("%s -A-> %s\n", requestedUrl, result[1]);
-				sendResponse(originalUrlRequest, result[0], result[1], requestIp, requestPort, socket);
+				// Only our own records, answers cached from other servers are already in the order those servers chose
+				if (answers == records.current().lookup(requestedUrl))
+					answers = balancer.order(requestedUrl, answers, requestRecord.address.getAddress());
+				System.out.printf("%s -A-> %s\n", requestedUrl, answers.get(0).value);
+				sendResponse(requestRecord, answers, transport);
 				break;
 			case DNS_TYPE_V:
 			case DNS_TYPE_CNAME:
-				System.out.printf("%s -CNAME-> %s\n", requestedUrl, result[1]);
-				if (localUrlLookup(result[1]) != null)
-					processRequest(result[1], requestRecord, socket);
+				System.out.printf("%s -CNAME-> %s\n", requestedUrl, result.value);
+				List<DnsRecord> target = localUrlLookup(result.value);
+				if (target != null && !target.get(0).type.equals(DNS_TYPE_NONE))
+					processRequest(result.value, requestRecord, transport);
 				else
-					sendResponse(originalUrlRequest, result[0], result[1], requestIp, requestPort, socket);
+					sendResponse(requestRecord, answers, transport);
 				break;
 			case DNS_TYPE_NS:
-				System.out.printf("%s -NS-> %s\n", requestedUrl, result[1]);
-				String nsIp = result[1];
-				int nsPort = PORT;
-				if (nsIp.contains(":")) {
-					String[] nsTokens = nsIp.split(":");
-					nsIp = nsTokens[0];
-					nsPort = Integer.parseInt(nsTokens[1]);
-				}
-				requests.put(requestedUrl, requestRecord);
-				System.out.printf("%s -NS-> %s\n", requestedUrl, result[1]);
-				sendRequest(requestedUrl, nsIp, nsPort, socket);
+				System.out.printf("%s -NS-> %s\n", requestedUrl, result.value);
+				delegate(requestedUrl, requestRecord, result.value.split(","), transport);
 				break;
 		}
 	}
 
 	/**
-	 * Handles responses. Resumes resolving for original request if an A record was not found.
-	 * @param requestedUrl Url that was requested to be found.
-	 * @param responseType Type of the record found.
-	 * @param responseValue Value of the record found.
-	 * @param socket Socket to send/receive requests/responses on.
+	 * Sends an NS query for a url, unless one is already outstanding. In that case the request waits on the existing
+	 * query instead, so there is only ever one upstream query per url.
+	 * @param requestedUrl Url to ask the other server for.
+	 * @param requestRecord Original request information.
+	 * @param servers Name servers to ask, in the format {@code ip[:port]}. Later servers are only used on retries.
+	 * @param transport Transport to send the query on.
 	 */
-	private void handleResponse(String requestedUrl, String responseType, String responseValue, DatagramSocket socket) {
-		// Get the original request that triggered the NS query
-		String requestRecord = requests.remove(requestedUrl);
-		if (requestRecord == null) return; // Dont bother continuing if there is no record of a request to resolve
-
-		final String[] requestRecordTokens = requestRecord.split(":");
-		final String
-			originalUrlRequest = requestRecordTokens[0],
-			requestIp = requestRecordTokens[1];
-		final int requestPort = Integer.parseInt(requestRecordTokens[2]);
-
-		switch (responseType) {
-			case DNS_TYPE_A:
-				// If its an A record, just send it back to the client right away.
-				sendResponse(originalUrlRequest, responseValue, responseValue, requestIp, requestPort, socket);
-				break;
-			default:
-				// For any other kind of record responce, resume resolving
-				processRequest(responseValue, requestRecord, socket);
-				break;
+	private void delegate(String requestedUrl, RequestRecord requestRecord, String[] servers, Transport transport) {
+		long now = System.currentTimeMillis();
+		PendingQuery created = new PendingQuery(requestedUrl, servers, now + upstreamTimeout, now + upstreamDeadline);
+		PendingQuery query = inFlight.putIfAbsent(requestedUrl, created);
+		if (query == null) query = created;
+
+		if (!query.addWaiter(requestRecord)) {
+			// The query was answered while we were joining it, so the answer is in the cache now
+			processRequest(requestedUrl, requestRecord, transport);
+			return;
 		}
+		if (query != created) {
+			System.out.printf("Joined request #%d for: %s\n", query.id, requestedUrl);
+			return;
+		}
+		if (requests.size() >= maxPending) {
+			// Too much outstanding already, fail fast rather than let the table grow
+			inFlight.remove(requestedUrl, query);
+			List<DnsRecord> none = none(0);
+			for (RequestRecord waiting : query.complete())
+				sendResponse(waiting, none, transport);
+			return;
+		}
+		// Random, so an answer can not be forged by guessing the id of the next query
+		do {
+			query.id = ThreadLocalRandom.current().nextInt() & 0xFFFF;
+		} while (requests.putIfAbsent(query.id, query) != null);
+		sendQuery(query, transport);
 	}
 
 	/**
-	 * Iteratively find the most accurate record type possible for a url.
-	 * @param url The url to resolve.
-	 * @return An array consisting of {recordType, recordValue}. Null if no record could be found.
-	 */
-	private String[] localUrlLookup(String url) {
-		String ns = getNsDomain(url);
-		if (records.get(DNS_TYPE_A).containsKey(url)) {
-			return new String[]{DNS_TYPE_A, records.get(DNS_TYPE_A).get(url)};
-		} else if (records.get(DNS_TYPE_V).containsKey(url)) {
-				return new String[]{DNS_TYPE_V, records.get(DNS_TYPE_V).get(url)};
-		} else if (records.get(DNS_TYPE_CNAME).containsKey(url)) {
-			return new String[]{DNS_TYPE_CNAME, records.get(DNS_TYPE_CNAME).get(url)};
-		} else if (ns != null) {
-			return new String[]{DNS_TYPE_NS, ns};
-		} else return null;
-	}
-
-	/**
-	 * Gets the most specific NS record value that applies to the requested url.
-	 * @param domain The url to find a NS server for.
-	 * @return NameServer value of one can be found. False otherwise.
-	 */
-	private String getNsDomain(String domain) {
-		// If the exact url exists as an NS record, return the value.
-		if (records.get(DNS_TYPE_NS).containsKey(domain))
-			return records.get(DNS_TYPE_NS).get(domain);
-
-		// If the first word before a '.' can be removed and has a matching NS record, return the record value.
-		String root = domain.substring(domain.indexOf('.') + 1);
-		if (records.get(DNS_TYPE_NS).containsKey(root))
-			return records.get(DNS_TYPE_NS).get(root);
-		return null;
+	 * Sends a query to the name server for its current attempt.
+	 * @param query The query to send.
+	 * @param transport Transport to send the query on.
+	 */
+	private void sendQuery(PendingQuery query, Transport transport) {
+		sendRequest(query.url, query.id, serverAddress(query.servers[query.attempt % query.servers.length]), transport);
 	}
 
 	/**
-	 * Helper method for sending dns requests in our protocol.
-	 * @param url The url to request.
-	 * @param destIp The destination ip.
-	 * @param destPort The destination port.
-	 * @param socket The destination socket.
+	 * @param server A name server value, in the format {@code ip[:port]}.
+	 * @return Its address, resolved once.
 	 */
-	private void sendRequest(String url, String destIp, int destPort, DatagramSocket socket) {
-		System.out.printf("Sending request for: %s to: %s\n", url, destIp);
-		try {
-			socket.send(createRequest(url, destIp, destPort));
-		} catch (IOException e) {
-			e.printStackTrace();
+	private InetSocketAddress serverAddress(String server) {
+		return serverAddresses.computeIfAbsent(server, this::toAddress);
+	}
+
+	/**
+	 * Resolves a name server value.
+	 * @param server A value in the format {@code ip[:port]}. The port defaults to the port of this server.
+	 * @return The address of the name server.
+	 */
+	private InetSocketAddress toAddress(String server) {
+		int port = PORT;
+		if (server.contains(":")) {
+			String[] tokens = server.split(":");
+			server = tokens[0];
+			port = Integer.parseInt(tokens[1]);
 		}
+		return new InetSocketAddress(server, port);
 	}
 
 	/**
-	 * Helper method for sending a dns response.
-	 * @param url The requested url.
-	 * @param type The found record type.
-	 * @param value The found record value.
-	 * @param destIp The destination ip (probably to the ip that send the request).
-	 * @param destPort The destination port (probably to the same port that sent the request).
-	 * @param socket The socket to send the response over.
+	 * Handles responses. Caches the answer, then resumes resolving for original request if an A record was not found.
+	 * A response only counts if its id, name and sender all match an outstanding NS query, so answers can not be forged
+	 * into the cache by anyone who can send a packet to this server.
+	 * @param message The response. Empty answers are treated as NONE.
+	 * @param from Address the response came from.
+	 * @param transport Transport to send requests/responses on.
 	 */
-	private void sendResponse(String url, String type, String value, String destIp, int destPort, DatagramSocket socket) {
-		System.out.printf("Sending response record: (%s, %s, %s) to: %s\n", url, value, type, destIp);
-		try {
-			socket.send(createResponse(url, type, value, destIp, destPort));
-		} catch (IOException e) {
-			e.printStackTrace();
+	private void handleResponse(DnsMessage message, InetSocketAddress from, Transport transport) {
+		// Get the original requests that triggered the NS query
+		PendingQuery query = requests.get(message.id);
+		if (query == null) return; // Dont bother continuing if there is no record of a request to resolve
+		if (!message.name.equalsIgnoreCase(query.url) || !query.isServer(from, this::serverAddress)) {
+			System.out.printf("Ignored a response to request #%d for: %s from: %s\n", message.id, message.name, from);
+			return;
+		}
+		if (!requests.remove(message.id, query)) return; // Answered in the meantime
+		inFlight.remove(query.url, query);
+		List<DnsRecord> answers = message.answers;
+
+		DnsRecord response = answers.isEmpty() ? none(0).get(0) : answers.get(0);
+		if (response.type.equals(DNS_TYPE_NONE)) {
+			// Never remember a miss for longer than we are configured to, even if the other server would allow it
+			int ttl = response.ttl > 0 ? Math.min(response.ttl, negativeTtl) : negativeTtl;
+			answers = none(ttl);
+		}
+		cache.put(query.url, answers);
+
+		for (RequestRecord requestRecord : query.complete()) {
+			switch (response.type) {
+				case DNS_TYPE_A:
+				case DNS_TYPE_NONE:
+					// If its an A record (or nothing at all), just send it back to the client right away.
+					// The other server already put its best A record first, so keep its order
+					sendResponse(requestRecord, answers, transport);
+					break;
+				default:
+					// For any other kind of record responce, resume resolving
+					processRequest(response.value, requestRecord, transport);
+					break;
+			}
 		}
 	}
 
 	/**
-	 * Helper method for creating a request packet.
-	 * @param url Requested url.
-	 * @param destIp Destination ip.
-	 * @param destPort Destination port.
-	 * @return Configured DatagramPacket ready to send through a socket.
-	 * @throws UnknownHostException Throws if the destIp is not in a valid format.
+	 * Iteratively find the most accurate record type possible for a url. Names that are not in the local records are
+	 * answered from the cache when possible, which may hold a {@link #DNS_TYPE_NONE} record for known misses.
+	 * @param url The url to resolve.
+	 * @return The records found, all of the same type. Null if no record could be found.
 	 */
-	private static DatagramPacket createRequest(String url, String destIp, int destPort) throws UnknownHostException {
-		if (destIp.contains(":")) {
-			String[] tokens = destIp.split(":");
-			destIp = tokens[0];
-			destPort = Integer.parseInt(tokens[1]);
+	private List<DnsRecord> localUrlLookup(String url) {
+		// One walk finds the A/V/CNAME records of the name, or else the NS record of its longest matching domain
+		List<DnsRecord> local = records.current().lookup(url);
+		if (local != null && !local.get(0).type.equals(DNS_TYPE_NS)) return local;
+
+		List<DnsRecord> cached = cache.get(url);
+		if (cached != null) {
+			System.out.printf("%s -CACHED-> %s\n", url, cached);
+			return cached;
 		}
-		byte[] buff = String.format("\2%s", url).getBytes();
-		return new DatagramPacket(buff, buff.length, InetAddress.getByName(destIp), destPort);
+		return local;
 	}
 
 	/**
-	 * Helper method for creating a responce packet.
-	 * @param url Requested url.
-	 * @param type Found record type.
-	 * @param value Found record value.
-	 * @param destIp Destination ip.
-	 * @param destPort Destination port.
-	 * @return A configured DatagramPacket ready to send to a socket.
-	 * @throws UnknownHostException Throws if an invalid destIp is passed in.
+	 * Helper method for sending dns requests in our protocol.
+	 * @param url The url to request.
+	 * @param id Transaction id of the request.
+	 * @param dest The destination address.
+	 * @param transport Transport to send the request on.
 	 */
-	private static DatagramPacket createResponse(String url, String type, String value, String destIp, int destPort) throws UnknownHostException {
-		if (destIp.contains(":")) {
-			String[] tokens = destIp.split(":");
-			destIp = tokens[0];
-			destPort = Integer.parseInt(tokens[1]);
+	private void sendRequest(String url, int id, InetSocketAddress dest, Transport transport) {
+		System.out.printf("Sending request #%d for: %s to: %s\n", id, url, dest.getAddress());
+		try {
+			transport.send(DnsMessage.request(id, url), dest);
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
 		}
-		byte[] buff = String.format("\1%s %s %s", url, type, value).getBytes();
-		if (destIp.startsWith("/")) destIp = destIp.substring(1);
-		InetAddress addr = InetAddress.getByName(destIp);
-		return new DatagramPacket(buff, buff.length, addr, destPort);
 	}
 
 	/**
-	 * Helper method to parse the requested url from a packet.
-	 * @param data Data to parse.
-	 * @return The requested url.
+	 * Helper method for sending a dns response to the client that made a request.
+	 * @param requestRecord The request being answered.
+	 * @param answers The found records, best first.
+	 * @param transport Transport to send the response over.
 	 */
-	private static String parseUrl(byte[] data) {
-		int e = findNIndex(data, (byte) ' ', 0);
-		if (e == -1) e = data.length;
-		return new String(Arrays.copyOfRange(data, 1, e)).trim();
+	private void sendResponse(RequestRecord requestRecord, List<DnsRecord> answers, Transport transport) {
+		System.out.printf("Sending response records: (%s, %s) to: %s\n", requestRecord.url, answers, requestRecord.address.getAddress());
+		try {
+			transport.send(DnsMessage.response(requestRecord.id, requestRecord.url, answers), requestRecord.address);
+		} catch (IOException | IllegalArgumentException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * Helper method to parse the record type from a response packet.
-	 * @param data Data to parse.
-	 * @return The type of record found.
+	 * @param ttl Seconds the answer may be cached for.
+	 * @return An answer saying the name could not be resolved.
 	 */
-	private static String parseType(byte[] data) {
-		int
-			s = findNIndex(data, (byte) ' ', 0),
-			e = findNIndex(data, (byte) ' ', 1);
-		if (e == -1) e = data.length;
-		return new String(Arrays.copyOfRange(data, s + 1, e)).trim();
+	private static List<DnsRecord> none(int ttl) {
+		return Collections.singletonList(new DnsRecord(DNS_TYPE_NONE, DNS_TYPE_NONE, ttl));
 	}
 
 	/**
-	 * Helper method to parse the record value from a response packet.
-	 * @param data Data to parse.
-	 * @return The value of the record found.
+	 * Helper method that encodes a message into this thread's send packet, and sends it.
+	 * @param message The message to send.
+	 * @param address Destination address.
+	 * @param socket The socket to send on.
+	 * @throws IOException Throws if the socket could not send.
 	 */
-	private static String parseValue(byte[] data) {
-		int
-			s = findNIndex(data, (byte) ' ', 1),
-			e = findNIndex(data, (byte) ' ', 2);
-		if (e == -1) e = data.length;
-		return new String(Arrays.copyOfRange(data, s + 1, e)).trim();
+	private static void send(DnsMessage message, InetSocketAddress address, DatagramSocket socket) throws IOException {
+		DatagramPacket packet = SEND_PACKET.get();
+		ByteBuffer buff = ByteBuffer.wrap(packet.getData());
+		message.encode(buff);
+		packet.setLength(buff.position());
+		packet.setSocketAddress(address);
+		socket.send(packet);
 	}
 
 	/**
-	 * Helper method that finds the index of the nth occurrence of a byte, in an array of bytes.
-	 * @param values Values to search in.
-	 * @param searchFor Byte to search for.
-	 * @param nth Number of matching bytes to skip. (0 will return the first occurrence, 1 the second, etc...).
-	 * @return The index of the nth matching byte. -1 if not found.
+	 * Something packets can be sent through, so resolving works the same over a socket or a channel.
 	 */
-	private static int findNIndex(byte[] values, byte searchFor, int nth) {
-		for (int i = 0; i < values.length; i++)
-			if (values[i] == searchFor) {
-				if (nth <= 0) return i;
-				else nth--;
-			}
-		return -1;
+	private interface Transport {
+		/**
+		 * @param message Message to send.
+		 * @param address Where to send it.
+		 * @throws IOException Throws if the message could not be sent.
+		 */
+		void send(DnsMessage message, InetSocketAddress address) throws IOException;
 	}
 
 	/**
-	 * Helper method to simplify the dns requesting process for other classes.
-	 * @param url Url to resolve.
-	 * @param myDnsPort The port for the response.
-	 * @param destIp The ip of the dns server.
-	 * @param destPort The port of the dns server.
-	 * @return The found record in the format { recordType, recordValue }. Null if not found.
-	 * @throws IOException Throws on a socket exception, usualy caused by a timeout.
+	 * An NS query sent to another server, along with every client request waiting on it.
 	 */
-	static String[] request(String url, int myDnsPort, String destIp, int destPort) throws IOException {
-		DatagramSocket socket = new DatagramSocket(myDnsPort); // open a socket
-		socket.setSoTimeout(REQUEST_TIMEOUT); // set timeout for receiving
-		socket.send(createRequest(url, destIp, destPort)); // send request packet
+	private static class PendingQuery {
+		/** The url that was asked for, which may differ from the one the client requested after following a CNAME. */
+		final String url;
+		/**
+		 * Transaction id the query was sent with, set once before it is first sent. Retries reuse it, so a late answer to
+		 * an earlier attempt still counts.
+		 */
+		int id;
+		/** Name servers to try, one per attempt. */
+		final String[] servers;
+		/** Time (in ms) the query is given up on. */
+		final long deadline;
+		/** Only updated by the sweeper. */
+		volatile int attempt = 0;
+		volatile long nextAttempt;
+		private final List<RequestRecord> waiters = new ArrayList<>();
+		private boolean completed = false;
+
+		PendingQuery(String url, String[] servers, long nextAttempt, long deadline) {
+			this.url = url;
+			this.servers = servers;
+			this.nextAttempt = nextAttempt;
+			this.deadline = deadline;
+		}
 
-		final byte[] BUFF = new byte[PACKET_SIZE];
-		DatagramPacket packet = new DatagramPacket(BUFF, BUFF.length);
-		try {
-			socket.receive(packet);
-		} catch (IOException e) {
-			socket.close();// make sure to clean up
-			throw new IllegalStateException("Dns timeout.");
+		/**
+		 * @param address Address a response came from.
+		 * @param resolve Resolves a name server value to its address.
+		 * @return True if the address is one of the name servers this query may have been sent to.
+		 */
+		boolean isServer(InetSocketAddress address, Function<String, InetSocketAddress> resolve) {
+			for (String server : servers) if (resolve.apply(server).equals(address)) return true;
+			return false;
+		}
+
+		/**
+		 * Adds a request to be answered when this query is.
+		 * @param requestRecord The waiting request.
+		 * @return False if the query has already been answered, and the request was not added.
+		 */
+		synchronized boolean addWaiter(RequestRecord requestRecord) {
+			if (completed) return false;
+			waiters.add(requestRecord);
+			return true;
+		}
+
+		/**
+		 * Marks the query as answered. No more requests can wait on it after this.
+		 * @return Every request that was waiting.
+		 */
+		synchronized List<RequestRecord> complete() {
+			completed = true;
+			return new ArrayList<>(waiters);
+		}
+	}
+
+	/**
+	 * A client request that is being resolved. Kept while waiting on an NS query so the answer can be sent back.
+	 */
+	private static class RequestRecord {
+		/** The url the client originally requested. */
+		final String url;
+		/** Address to send the answer to, the same one the request was received from. */
+		final InetSocketAddress address;
+		/** Transaction id the client sent, echoed back in the answer. */
+		final int id;
+
+		RequestRecord(String url, InetSocketAddress address, int id) {
+			this.url = url;
+			this.address = address;
+			this.id = id;
 		}
-		socket.close();
-		return new String[]{parseType(BUFF), parseValue(BUFF)};
 	}
 
 }
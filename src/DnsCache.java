@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of answers received from other dns servers. Entries expire after their ttl, and the least recently
+ * used entry is evicted once the cache is full. Names that could not be resolved are cached as
+ * {@link Dns#DNS_TYPE_NONE} records. Safe to use from multiple threads.
+ */
+public class DnsCache {
+	private final int capacity;
+	private final LinkedHashMap<String, CachedRecord> entries;
+
+	/** Lookup counters. */
+	private long hits, negativeHits, misses;
+
+	/**
+	 * Creates an empty cache.
+	 * @param capacity Maximum number of names to keep.
+	 */
+	public DnsCache(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		// Access ordered, so iteration starts at the least recently used entry
+		entries = new LinkedHashMap<String, CachedRecord>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedRecord> eldest) {
+				return size() > DnsCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Stores an answer for a name, replacing any previous answer. The answer expires with the shortest ttl of its
+	 * records, and is not stored at all if that is 0.
+	 * @param url The name that was resolved.
+	 * @param answers The records of the answer.
+	 */
+	public synchronized void put(String url, List<DnsRecord> answers) {
+		if (answers.isEmpty()) return;
+		int ttl = Integer.MAX_VALUE;
+		for (DnsRecord record : answers) ttl = Math.min(ttl, record.ttl);
+		if (ttl <= 0) return;
+		entries.put(url, new CachedRecord(new ArrayList<>(answers), System.currentTimeMillis() + ttl * 1000L));
+	}
+
+	/**
+	 * Gets a cached answer for a name.
+	 * @param url The name to look up.
+	 * @return The records of the answer with their ttl set to the seconds remaining, null if nothing is cached or it has
+	 * expired.
+	 */
+	public synchronized List<DnsRecord> get(String url) {
+		CachedRecord entry = entries.get(url);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		long remaining = entry.expires - System.currentTimeMillis();
+		if (remaining <= 0) {
+			entries.remove(url);
+			misses++;
+			return null;
+		}
+		if (entry.answers.get(0).type.equals(Dns.DNS_TYPE_NONE)) negativeHits++;
+		else hits++;
+		int ttl = (int) Math.max(1, remaining / 1000);
+		List<DnsRecord> answers = new ArrayList<>(entry.answers.size());
+		for (DnsRecord record : entry.answers) answers.add(record.withTtl(ttl));
+		return answers;
+	}
+
+	/**
+	 * @return The number of lookups answered with a cached record.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of lookups answered with a cached {@link Dns#DNS_TYPE_NONE} record.
+	 */
+	public synchronized long getNegativeHits() {
+		return negativeHits;
+	}
+
+	/**
+	 * @return The number of lookups that found nothing cached.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return The number of names currently cached, including any that have expired but not been evicted yet.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d hits, %d negative hits, %d misses, %d entries", hits, negativeHits, misses, entries.size());
+	}
+
+	/** A cached answer with the time it expires at. */
+	private static class CachedRecord {
+		final List<DnsRecord> answers;
+		final long expires;
+
+		CachedRecord(List<DnsRecord> answers, long expires) {
+			this.answers = answers;
+			this.expires = expires;
+		}
+	}
+}
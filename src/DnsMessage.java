@@ -0,0 +1,197 @@
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A dns packet in our binary protocol. Packets are read and written directly from a {@link ByteBuffer} in a single pass.
+ * <br />
+ * Format (all numbers are big endian):
+ * <pre>
+ *     byte   kind          {@link #REQUEST} or {@link #RESPONSE}
+ *     short  id            transaction id, echoed back in the response
+ *     byte   length        followed by that many bytes of the requested name
+ *     -- responses only --
+ *     byte   count         number of answers, each one being:
+ *         byte   type      see {@link #typeCode(String)}
+ *         int    ttl       seconds
+ *         byte   length    followed by that many bytes of the record value
+ * </pre>
+ */
+public class DnsMessage {
+	/** Packet kinds. */
+	public static final byte
+		RESPONSE = 1,
+		REQUEST = 2,
+		/** Sent by web servers, see {@link LoadReport}. */
+		LOAD_REPORT = 3;
+
+	/** Longest name or value that fits in a length byte. */
+	private static final int MAX_STRING = 0xFF;
+
+	/** Scratch space for reading strings out of direct buffers. */
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_STRING]);
+
+	public final byte kind;
+	public final int id;
+	public final String name;
+	/** Empty for requests. */
+	public final List<DnsRecord> answers;
+
+	public DnsMessage(byte kind, int id, String name, List<DnsRecord> answers) {
+		this.kind = kind;
+		this.id = id & 0xFFFF;
+		this.name = name;
+		this.answers = answers;
+	}
+
+	/**
+	 * Creates a request packet.
+	 * @param id Transaction id.
+	 * @param name Name to resolve.
+	 * @return The request.
+	 */
+	public static DnsMessage request(int id, String name) {
+		return new DnsMessage(REQUEST, id, name, Collections.<DnsRecord>emptyList());
+	}
+
+	/**
+	 * Creates a response packet.
+	 * @param id Transaction id of the request being answered.
+	 * @param name Name that was requested.
+	 * @param answers The records found, best first.
+	 * @return The response.
+	 */
+	public static DnsMessage response(int id, String name, List<DnsRecord> answers) {
+		return new DnsMessage(RESPONSE, id, name, answers);
+	}
+
+	/**
+	 * Writes this message into a buffer, starting at its position. Answers that do not fit are left out.
+	 * @param buff Buffer to write to.
+	 * @throws IllegalArgumentException Throws if the name is too long, or the buffer cannot hold the header.
+	 */
+	public void encode(ByteBuffer buff) {
+		try {
+			buff.put(kind);
+			buff.putShort((short) id);
+			putString(buff, name);
+			if (kind != RESPONSE) return;
+
+			int countAt = buff.position();
+			int count = 0;
+			buff.put((byte) 0);
+			for (DnsRecord answer : answers) {
+				int start = buff.position();
+				try {
+					buff.put(typeCode(answer.type));
+					buff.putInt(answer.ttl);
+					putString(buff, answer.value);
+				} catch (BufferOverflowException | IllegalArgumentException e) {
+					buff.position(start);
+					break;
+				}
+				if (++count == MAX_STRING) break;
+			}
+			buff.put(countAt, (byte) count);
+		} catch (BufferOverflowException e) {
+			throw new IllegalArgumentException("Packet does not fit in the buffer.");
+		}
+	}
+
+	/**
+	 * Reads a message from a buffer, from its position up to its limit.
+	 * @param buff Buffer to read from.
+	 * @return The message read.
+	 * @throws IllegalArgumentException Throws if the buffer does not hold a valid message.
+	 */
+	public static DnsMessage decode(ByteBuffer buff) {
+		try {
+			byte kind = buff.get();
+			int id = buff.getShort() & 0xFFFF;
+			String name = getString(buff);
+			if (kind == REQUEST) return request(id, name);
+			if (kind != RESPONSE) throw new IllegalArgumentException("Unknown packet kind: " + kind);
+
+			int count = buff.get() & 0xFF;
+			List<DnsRecord> answers = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				String type = typeName(buff.get());
+				int ttl = buff.getInt();
+				answers.add(new DnsRecord(type, getString(buff), ttl));
+			}
+			return new DnsMessage(kind, id, name, answers);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated packet.");
+		}
+	}
+
+	/**
+	 * Writes a length prefixed string.
+	 * @param buff Buffer to write to.
+	 * @param value String to write, expected to be ascii.
+	 */
+	static void putString(ByteBuffer buff, String value) {
+		int length = value.length();
+		if (length > MAX_STRING) throw new IllegalArgumentException("Too long: " + value);
+		buff.put((byte) length);
+		for (int i = 0; i < length; i++)
+			buff.put((byte) value.charAt(i));
+	}
+
+	/**
+	 * Reads a length prefixed string.
+	 * @param buff Buffer to read from.
+	 * @return The string read.
+	 */
+	static String getString(ByteBuffer buff) {
+		int length = buff.get() & 0xFF;
+		if (length > buff.remaining()) throw new BufferUnderflowException();
+		String value;
+		if (buff.hasArray()) {
+			value = new String(buff.array(), buff.arrayOffset() + buff.position(), length, StandardCharsets.ISO_8859_1);
+			buff.position(buff.position() + length);
+		} else {
+			byte[] scratch = SCRATCH.get();
+			buff.get(scratch, 0, length);
+			value = new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+		}
+		return value;
+	}
+
+	/**
+	 * @param type A record type.
+	 * @return The code used for the type on the wire.
+	 */
+	static byte typeCode(String type) {
+		switch (type) {
+			case Dns.DNS_TYPE_A: return 1;
+			case Dns.DNS_TYPE_V: return 2;
+			case Dns.DNS_TYPE_CNAME: return 3;
+			case Dns.DNS_TYPE_NS: return 4;
+			default: return 0;
+		}
+	}
+
+	/**
+	 * @param code A type code read off the wire.
+	 * @return The record type for the code. Unknown codes are read as NONE.
+	 */
+	static String typeName(byte code) {
+		switch (code) {
+			case 1: return Dns.DNS_TYPE_A;
+			case 2: return Dns.DNS_TYPE_V;
+			case 3: return Dns.DNS_TYPE_CNAME;
+			case 4: return Dns.DNS_TYPE_NS;
+			default: return Dns.DNS_TYPE_NONE;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("#%d %s %s", id, name, answers);
+	}
+}
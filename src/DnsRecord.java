@@ -0,0 +1,45 @@
+/**
+ * A single dns record, as loaded from a zone file or received in a response.
+ */
+public class DnsRecord {
+	/** Ttl (in seconds) used when a zone file line does not specify one. */
+	public static final int DEFAULT_TTL = 300;
+	/** Weight used when a zone file line does not specify one. */
+	public static final int DEFAULT_WEIGHT = 1;
+
+	public final String type;
+	public final String value;
+	/** Time to live in seconds. */
+	public final int ttl;
+	/** Share of requests this record gets relative to other A records for the same name. Not sent over the wire. */
+	public final int weight;
+
+	public DnsRecord(String type, String value, int ttl, int weight) {
+		this.type = type;
+		this.value = value;
+		this.ttl = ttl;
+		this.weight = weight;
+	}
+
+	public DnsRecord(String type, String value, int ttl) {
+		this(type, value, ttl, DEFAULT_WEIGHT);
+	}
+
+	public DnsRecord(String type, String value) {
+		this(type, value, DEFAULT_TTL);
+	}
+
+	/**
+	 * Creates a copy of this record with a different ttl.
+	 * @param ttl The new ttl in seconds.
+	 * @return The new record.
+	 */
+	public DnsRecord withTtl(int ttl) {
+		return new DnsRecord(type, value, ttl, weight);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s %d", type, value, ttl);
+	}
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An edge server, for a tier of caches in front of an origin {@link Web} server. It speaks the same protocol as the web
+ * server, so clients can not tell the two apart, but has no content of its own: each file is fetched from the origin
+ * the first time it is asked for, and kept in a {@link DiskCache} for the requests after it.
+ * <br />
+ * A file is sent on as it arrives from the origin, so the first client gets its first bytes about as soon as it would
+ * from the origin, and clients asking for the same file meanwhile share the one fetch. A range is sent once the fetch of
+ * the whole file has reached it. If the origin fails, the connection is closed, so clients retry elsewhere.
+ */
+public class Edge {
+	/** Default connections kept to the origin. */
+	static final int DEFAULT_ORIGIN_CONNECTIONS = 32;
+
+	public final int LOCAL_PORT;
+	private final String originHost;
+	private final int originPort;
+	private final DiskCache cache;
+	/** Connections to the origin, shared by the fetches. */
+	private final ConnectionPool origin;
+	/** Threads fetching files from the origin, so a fetch finishes even if the client that started it goes away. */
+	private final ExecutorService fills;
+
+	private int maxConnections = Web.DEFAULT_MAX_CONNECTIONS;
+	/** Serves connections the same way the threads engine of the web server does. */
+	private final ConnectionServer server = new ConnectionServer("edge", this::respond, new AtomicInteger());
+	private volatile ServerSocketChannel serverChannel;
+	/** Released once {@link #run(OutputStream)} has drained. */
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * @param port Port to listen for connections on.
+	 * @param origin The origin web server, in the format {@code ip[:port]}.
+	 * @param defaultPort Port to use when the origin has none.
+	 * @param cache Where fetched files are kept.
+	 */
+	public Edge(int port, String origin, int defaultPort, DiskCache cache) {
+		LOCAL_PORT = port;
+		int originPort = defaultPort;
+		if (origin.contains(":")) {
+			String[] tokens = origin.split(":");
+			origin = tokens[0];
+			originPort = Integer.parseInt(tokens[1]);
+		}
+		originHost = origin;
+		this.originPort = originPort;
+		this.cache = cache;
+		this.origin = new ConnectionPool(DEFAULT_ORIGIN_CONNECTIONS, ConnectionPool.DEFAULT_IDLE_TIMEOUT);
+		AtomicInteger threadCount = new AtomicInteger();
+		fills = Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "edge-fill-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Sets how many connections are served at once. Must be called before {@link #run(OutputStream)}.
+	 * @param connections Connections served at once, each on its own worker thread.
+	 * @param drainSeconds Seconds to let connections in progress finish on shutdown.
+	 * @param keepAliveSeconds Seconds a connection may be idle, 0 to close every connection after one response.
+	 */
+	void setConnectionLimits(int connections, int drainSeconds, int keepAliveSeconds) {
+		maxConnections = Math.max(1, connections);
+		server.setLimits(connections, drainSeconds, keepAliveSeconds);
+	}
+
+	/**
+	 * Starts the server, serving each connection on a worker thread. This method returns once the server is shut down
+	 * (see {@link #stop()}) and the connections in progress have drained.
+	 * @param msgOut Output to write log messages to.
+	 */
+	public void run(OutputStream msgOut) {
+		final PrintWriter writer = new PrintWriter(msgOut);
+		writer.printf("Starting up edge server for %s:%d with cache: %s\n", originHost, originPort, cache);
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(LOCAL_PORT), Web.ACCEPT_BACKLOG);
+		} catch (IOException e) {
+			writer.printf("Failed to start server on port %d\n", LOCAL_PORT);
+			writer.flush();
+			stopped.countDown();
+			return;
+		}
+		writer.printf("Server started on port %d, serving up to %d connections.\n", LOCAL_PORT, maxConnections);
+		writer.flush();
+
+		try {
+			server.run(serverChannel, writer);
+		} finally {
+			origin.close();
+			writer.printf("Server stopped. Cache: %s\n", cache);
+			writer.flush();
+			stopped.countDown();
+		}
+	}
+
+	/**
+	 * Stops accepting connections, then waits for {@link #run(OutputStream)} to drain the connections in progress.
+	 * Safe to call from a shutdown hook.
+	 */
+	public void stop() {
+		server.stop();
+		try {
+			if (serverChannel != null) serverChannel.close();
+			stopped.await();
+		} catch (IOException | InterruptedException ignored) {}
+	}
+
+	/**
+	 * Writes the response to one request, from the cache, fetching the file from the origin first if it is not there.
+	 * @param request The request.
+	 * @param socket Connection to write to.
+	 * @param writer Output for log messages.
+	 * @throws IOException Throws if the connection could not be written to, or the origin failed.
+	 */
+	private void respond(WebRequest request, Socket socket, PrintWriter writer) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		SocketChannel channel = socket.getChannel();
+		String key = request.path.equals("/") ? "/index.txt" : request.path.startsWith("/") ? request.path : "/" + request.path;
+		boolean[] miss = {false};
+		DiskCache.Entry entry = cache.acquire(key, started -> {
+			miss[0] = true;
+			fills.execute(() -> fill(started, writer));
+		});
+		try {
+			String source = miss[0] ? "miss" : entry.isDone() ? "hit" : "shared";
+			long total = entry.awaitTotal();
+			if (total < 0) {
+				writer.printf("404 - %s Requested file: %s (%s)\n", socket.getInetAddress().toString(), request, source);
+				write(out, request.responseHeader(Web.STATUS_NOT_FOUND, 0));
+				return;
+			}
+			writer.printf("%s - %s Requested file: %s (%s)\n", request.isRange() ? "206" : "200",
+				socket.getInetAddress().toString(), request, source);
+			write(out, request.responseHeader(total, entry.validator()));
+			long position = request.start(total);
+			entry.transferTo(position, position + request.length(total), channel);
+		} finally {
+			entry.release();
+		}
+	}
+
+	/**
+	 * Fetches a file from the origin into its cache entry, waking up the requests waiting on it as bytes arrive.
+	 * @param entry The new entry.
+	 * @param writer Output for log messages.
+	 */
+	private void fill(DiskCache.Entry entry, PrintWriter writer) {
+		// The whole file, but as a range, so the origin sends its validator along
+		WebRequest request = new WebRequest(entry.key, WebRequest.VERSION_2, true, 0, -1);
+		WebConnection connection = null;
+		// Set once the response has been read to its end, so the connection can take another request
+		boolean complete = false;
+		try {
+			connection = origin.acquire(originHost, originPort);
+			byte code;
+			try {
+				code = connection.send(request);
+			} catch (IOException e) {
+				if (!connection.reused) throw e;
+				// The origin closed the idle connection in the meantime, so try once more on a new one
+				connection = origin.reopen(connection);
+				code = connection.send(request);
+			}
+			long length = connection.readLong();
+			if (code == Web.STATUS_NOT_FOUND) {
+				complete = length == 0;
+				cache.fail(entry, null, true);
+				return;
+			}
+			if (code != Web.STATUS_PARTIAL) throw new IOException("Unexpected status " + (code & 0xFF) + " from the origin.");
+			connection.readLong(); // Start, always 0
+			connection.readLong(); // Total, the same as the length
+			cache.begin(entry, length, connection.readBytes(WebRequest.VALIDATOR_SIZE));
+			long remaining = length;
+			while (remaining > 0) {
+				ByteBuffer received = connection.receive(1);
+				ByteBuffer body = received.duplicate();
+				body.limit(body.position() + (int) Math.min(body.remaining(), remaining));
+				int count = body.remaining();
+				entry.write(body);
+				received.position(received.position() + count);
+				remaining -= count;
+			}
+			complete = true;
+			cache.complete(entry);
+		} catch (IOException | RuntimeException e) {
+			writer.printf("ERROR - Could not fetch %s from the origin: %s\n", entry.key, e);
+			writer.flush();
+			cache.fail(entry, e instanceof IOException ? (IOException) e : new IOException(e), false);
+		} finally {
+			if (connection != null) origin.release(connection, complete);
+		}
+	}
+
+	private static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+		out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Counts latencies in buckets whose width grows with the value, in the style of HdrHistogram, so any value from a
+ * microsecond to hours is kept to within 1/64 of itself in a few thousand counters.
+ * <br />
+ * Values below 128 get a bucket each. Above that, every power of two is split into 64 buckets of equal width. Not safe
+ * to use from multiple threads: each thread records into its own histogram, and they are added together at the end.
+ */
+class LatencyHistogram {
+	/** Bits of a value kept exactly, one more than the buckets per power of two. */
+	private static final int SUB_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS, HALF = SUB_BUCKETS / 2;
+
+	private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BITS) * HALF];
+	private long count, max;
+
+	/**
+	 * @param value A latency, in microseconds. Negative values count as 0.
+	 */
+	void record(long value) {
+		value = Math.max(0, value);
+		counts[index(value)]++;
+		count++;
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Adds the counts of another histogram to this one.
+	 */
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+		count += other.count;
+		max = Math.max(max, other.max);
+	}
+
+	long count() {
+		return count;
+	}
+
+	long max() {
+		return max;
+	}
+
+	/**
+	 * @param quantile Fraction of values, from 0 to 1.
+	 * @return The highest value in the bucket holding that fraction of the values, so never below the true value.
+	 */
+	long percentile(double quantile) {
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(highest(i), max);
+		}
+		return max;
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	/**
+	 * @return The highest value counted in a bucket.
+	 */
+	private static long highest(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long sub = (index - SUB_BUCKETS) % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,176 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which of several A records of a name a client should use, by putting the best one first. Servers are known by
+ * the value of their A records, and tell us how loaded they are through {@link LoadReport}s.
+ * <br />
+ * Policies:
+ * <ul>
+ *     <li>first: zone file order, nothing is changed</li>
+ *     <li>round-robin: each answer starts one record further along</li>
+ *     <li>weighted: the first record is picked at random, in proportion to record weights</li>
+ *     <li>least-loaded: lowest share of capacity in use first</li>
+ *     <li>lowest-rtt: lowest round trip to the subnet of the client first, then least loaded</li>
+ * </ul>
+ * Round trips are the ones clients report to each server, keyed by the client's subnet, while the dns server only sees
+ * the subnet of whoever asked it. The two are the same for a {@link Client}, which resolves names itself, but a client
+ * behind a shared resolver gets the servers closest to its resolver.
+ * Servers that have not reported recently go last, so a server that died stops being handed out.
+ */
+public class LoadBalancer {
+	/** Policies. */
+	static final String
+		POLICY_FIRST = "first",
+		POLICY_ROUND_ROBIN = "round-robin",
+		POLICY_WEIGHTED = "weighted",
+		POLICY_LEAST_LOADED = "least-loaded",
+		POLICY_LOWEST_RTT = "lowest-rtt";
+	/** How long (in ms) a report is trusted for. */
+	private static final int REPORT_EXPIRY = 15000;
+
+	private final String policy;
+	/** Next starting record, keyed by name. */
+	private final ConcurrentHashMap<String, AtomicInteger> rotations = new ConcurrentHashMap<>();
+	/** Latest report from each server, keyed by the address it is known by. */
+	private final ConcurrentHashMap<String, ServerState> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * @param policy One of the policies above.
+	 * @throws IllegalArgumentException Throws if the policy is unknown.
+	 */
+	LoadBalancer(String policy) {
+		switch (policy) {
+			case POLICY_FIRST:
+			case POLICY_ROUND_ROBIN:
+			case POLICY_WEIGHTED:
+			case POLICY_LEAST_LOADED:
+			case POLICY_LOWEST_RTT:
+				this.policy = policy;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown policy: " + policy);
+		}
+	}
+
+	/**
+	 * Takes in a report from a server.
+	 * @param report The report.
+	 * @param from Address the report came from, used when the report does not name the server.
+	 */
+	void report(LoadReport report, InetAddress from) {
+		String address = report.address.isEmpty() ? from.getHostAddress() : report.address;
+		servers.put(address, new ServerState(report, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Orders the A records of a name for a client.
+	 * @param name The name that was asked for.
+	 * @param targets A records of the name. Not modified.
+	 * @param client Address of the client that asked.
+	 * @return The same records, best first.
+	 */
+	List<DnsRecord> order(String name, List<DnsRecord> targets, InetAddress client) {
+		if (targets.size() < 2 || policy.equals(POLICY_FIRST)) return targets;
+		if (policy.equals(POLICY_WEIGHTED)) return weighted(targets);
+
+		// Rotating first spreads requests over servers that are tied, or that we know nothing about
+		List<DnsRecord> ordered = rotate(name, targets);
+		if (policy.equals(POLICY_ROUND_ROBIN)) return ordered;
+
+		long now = System.currentTimeMillis();
+		Comparator<DnsRecord> byLoad = Comparator.comparingDouble(record -> load(record, now));
+		if (policy.equals(POLICY_LOWEST_RTT)) {
+			String subnet = LoadReport.subnet(client);
+			ordered.sort(Comparator.<DnsRecord>comparingLong(record -> latency(record, subnet, now)).thenComparing(byLoad));
+		} else {
+			ordered.sort(byLoad);
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return A copy of the records, starting one further along than the last time this name was asked for.
+	 */
+	private List<DnsRecord> rotate(String name, List<DnsRecord> targets) {
+		int start = Math.floorMod(rotations.computeIfAbsent(name, key -> new AtomicInteger()).getAndIncrement(), targets.size());
+		List<DnsRecord> rotated = new ArrayList<>(targets.size());
+		rotated.addAll(targets.subList(start, targets.size()));
+		rotated.addAll(targets.subList(0, start));
+		return rotated;
+	}
+
+	/**
+	 * @return A copy of the records, with one picked by weight moved to the front.
+	 */
+	private List<DnsRecord> weighted(List<DnsRecord> targets) {
+		int total = 0;
+		for (DnsRecord record : targets) total += record.weight;
+		int pick = ThreadLocalRandom.current().nextInt(total);
+		List<DnsRecord> ordered = new ArrayList<>(targets);
+		for (int i = 0; i < ordered.size(); i++) {
+			pick -= ordered.get(i).weight;
+			if (pick < 0) {
+				Collections.swap(ordered, 0, i);
+				break;
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return Share of capacity in use, past 1 when the server has no recent report.
+	 */
+	private double load(DnsRecord record, long now) {
+		ServerState state = fresh(record, now);
+		if (state == null) return Double.MAX_VALUE;
+		return state.active / (double) Math.max(1, state.capacity);
+	}
+
+	/**
+	 * @return Latency in microseconds from the server to a subnet, {@link Long#MAX_VALUE} when it is not known.
+	 */
+	private long latency(DnsRecord record, String subnet, long now) {
+		ServerState state = fresh(record, now);
+		if (state == null) return Long.MAX_VALUE;
+		Integer latency = state.latencies.get(subnet);
+		// Servers that have never served the subnet go after those that have, but before dead ones
+		return latency != null ? latency : Long.MAX_VALUE - 1;
+	}
+
+	private ServerState fresh(DnsRecord record, long now) {
+		ServerState state = servers.get(record.value);
+		return state != null && now - state.received < REPORT_EXPIRY ? state : null;
+	}
+
+	@Override
+	public String toString() {
+		return policy + " " + servers;
+	}
+
+	/** The latest report of a server. */
+	private static class ServerState {
+		final int active, capacity;
+		final Map<String, Integer> latencies;
+		final long received;
+
+		ServerState(LoadReport report, long received) {
+			this.active = report.active;
+			this.capacity = report.capacity;
+			this.latencies = report.latencies;
+			this.received = received;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d/%d %s", active, capacity, latencies);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+import java.io.*;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests through a {@link Client} from many workers at once, then reports throughput and latency percentiles,
+ * with the latency broken down into the phases of {@link RequestTiming}.
+ * <br />
+ * Urls come from a workload file with one url per line, optionally after a weight: {@code [weight] url}. Lines starting
+ * with # are skipped. Every request picks a url at random, in proportion to the weights.
+ * <br />
+ * Given a rate, requests are sent on a fixed schedule, and their latency is measured from when they were due rather
+ * than when they were sent. A stalled server is then charged for every request that queued up behind it, instead of
+ * the stall hiding in the gaps between requests (coordinated omission). Without a rate, every worker sends its next
+ * request once the last one is answered, and latency is the service time alone. Phases are always measured from when
+ * the request was sent.
+ */
+class LoadGenerator {
+	/** Defaults for the number of workers, and the seconds to run for. */
+	public static final int
+		DEFAULT_WORKERS = 16,
+		DEFAULT_DURATION = 10;
+
+	/** Takes text responses, and drops them. */
+	private static final Appendable DISCARD = new Appendable() {
+		@Override
+		public Appendable append(CharSequence csq) {
+			return this;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) {
+			return this;
+		}
+	};
+
+	private final Client client;
+	private final List<URL> urls = new ArrayList<>();
+	/** Running total of the weights, for picking urls by binary search. */
+	private double[] weights = new double[0];
+
+	private int workers = DEFAULT_WORKERS;
+	/** Nanoseconds to run for, and requests to send, 0 for no limit. */
+	private long duration = TimeUnit.SECONDS.toNanos(DEFAULT_DURATION), requests;
+	/** Requests per second across all workers, 0 to send each as soon as the last was answered. */
+	private double rate;
+
+	/**
+	 * @param client Client to send the requests through. Its downloads should not be kept.
+	 * @param workload Workload file to read the urls from.
+	 * @throws IOException Throws if the workload could not be read.
+	 * @throws IllegalArgumentException Throws if the workload has a bad line, or no urls.
+	 */
+	LoadGenerator(Client client, String workload) throws IOException {
+		this.client = client;
+		try (BufferedReader reader = new BufferedReader(new FileReader(workload))) {
+			String line;
+			double total = 0;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] tokens = line.split("\\s+");
+				double weight = 1;
+				try {
+					if (tokens.length > 1) weight = Double.parseDouble(tokens[0]);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Bad weight: " + line);
+				}
+				if (weight <= 0) continue;
+				urls.add(client.toUrl(tokens[tokens.length - 1]));
+				weights = Arrays.copyOf(weights, urls.size());
+				weights[urls.size() - 1] = total += weight;
+			}
+		}
+		if (urls.isEmpty()) throw new IllegalArgumentException("No urls in " + workload);
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Sets when to stop. The run stops at whichever limit comes first.
+	 * @param seconds Seconds to run for, 0 for no limit.
+	 * @param requests Requests to send, 0 for no limit.
+	 */
+	public void setLimits(int seconds, long requests) {
+		this.duration = TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+		this.requests = Math.max(0, requests);
+	}
+
+	/**
+	 * @param rate Requests per second across all workers, 0 to send each as soon as the last was answered.
+	 */
+	public void setRate(double rate) {
+		this.rate = Math.max(0, rate);
+	}
+
+	/**
+	 * Runs the load, and prints the report.
+	 * @param out Stream to print the report to.
+	 * @throws InterruptedException Throws if interrupted while waiting for the workers.
+	 */
+	public void run(PrintStream out) throws InterruptedException {
+		String limit;
+		if (duration > 0 && requests > 0) limit = TimeUnit.NANOSECONDS.toSeconds(duration) + "s or " + requests + " requests";
+		else if (duration > 0) limit = TimeUnit.NANOSECONDS.toSeconds(duration) + "s";
+		else limit = requests + " requests";
+		out.printf("Sending %s to %d url(s) with %d workers, for %s.\n",
+			rate > 0 ? String.format("%.1f requests/s", rate) : "requests back to back", urls.size(), workers, limit);
+		out.flush();
+
+		AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(workers,
+			task -> new Thread(task, "load-" + threadCount.incrementAndGet()));
+		AtomicLong issued = new AtomicLong();
+		Results[] results = new Results[workers];
+		long start = System.nanoTime();
+		long end = duration > 0 ? start + duration : Long.MAX_VALUE;
+		// Nanoseconds between the requests of one worker, spread so the workers take turns
+		long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * workers / rate) : 0;
+		for (int i = 0; i < workers; i++) {
+			Results result = results[i] = new Results();
+			long first = start + interval * i / workers;
+			pool.execute(() -> work(result, first, interval, end, issued));
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Results total = new Results();
+		for (Results result : results) total.add(result);
+		long count = total.latency.count();
+		out.printf("%d requests, %d errors in %.2fs: %.1f requests/s, %.1f MB/s\n",
+			count, total.errors, seconds, count / seconds, total.bytes / 1e6 / seconds);
+		out.printf("%-12s %9s %9s %9s %9s %9s\n", "Latency (ms)", "p50", "p90", "p99", "p99.9", "max");
+		print(out, rate > 0 ? "total" : "service", total.latency);
+		print(out, "dns", total.dns);
+		print(out, "connect", total.connect);
+		print(out, "first byte", total.firstByte);
+		print(out, "transfer", total.transfer);
+		out.flush();
+	}
+
+	/**
+	 * Sends requests until a limit is reached.
+	 * @param result Where to record the requests.
+	 * @param due When the first request is due, in {@link System#nanoTime()}.
+	 * @param interval Nanoseconds between requests, 0 to send them back to back.
+	 * @param end When to stop, in {@link System#nanoTime()}.
+	 * @param issued Requests sent by every worker so far.
+	 */
+	private void work(Results result, long due, long interval, long end, AtomicLong issued) {
+		while (true) {
+			long now = System.nanoTime();
+			if (interval == 0) due = now;
+			else while (due - now > 0) {
+				LockSupport.parkNanos(due - now);
+				now = System.nanoTime();
+			}
+			if (due - end >= 0 || requests > 0 && issued.incrementAndGet() > requests) return;
+
+			RequestTiming timing = new RequestTiming();
+			try {
+				client.get(pick(), DISCARD, timing);
+			} catch (RuntimeException e) {
+				result.errors++;
+				due += interval;
+				continue;
+			}
+			result.latency.record((System.nanoTime() - due) / 1000);
+			result.dns.record(timing.dns / 1000);
+			result.connect.record(timing.connect / 1000);
+			result.firstByte.record(timing.firstByte / 1000);
+			result.transfer.record(timing.transfer / 1000);
+			result.bytes += timing.bytes;
+			due += interval;
+		}
+	}
+
+	/**
+	 * @return A url of the workload, picked at random in proportion to the weights.
+	 */
+	private URL pick() {
+		double point = ThreadLocalRandom.current().nextDouble() * weights[weights.length - 1];
+		int i = Arrays.binarySearch(weights, point);
+		return urls.get(Math.min(urls.size() - 1, i < 0 ? -i - 1 : i + 1));
+	}
+
+	private static void print(PrintStream out, String name, LatencyHistogram histogram) {
+		out.printf("%-12s %9.3f %9.3f %9.3f %9.3f %9.3f\n", name, histogram.percentile(0.5) / 1e3,
+			histogram.percentile(0.9) / 1e3, histogram.percentile(0.99) / 1e3, histogram.percentile(0.999) / 1e3,
+			histogram.max() / 1e3);
+	}
+
+	/** What one worker recorded. */
+	private static class Results {
+		final LatencyHistogram latency = new LatencyHistogram(), dns = new LatencyHistogram(),
+			connect = new LatencyHistogram(), firstByte = new LatencyHistogram(), transfer = new LatencyHistogram();
+		long errors, bytes;
+
+		void add(Results other) {
+			latency.add(other.latency);
+			dns.add(other.dns);
+			connect.add(other.connect);
+			firstByte.add(other.firstByte);
+			transfer.add(other.transfer);
+			errors += other.errors;
+			bytes += other.bytes;
+		}
+	}
+}
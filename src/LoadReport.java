@@ -0,0 +1,121 @@
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A load report, sent periodically by a web server to the dns server that hands out its address. Uses the same length
+ * prefixed strings as {@link DnsMessage}.
+ * <br />
+ * Format (all numbers are big endian):
+ * <pre>
+ *     byte   kind          {@link DnsMessage#LOAD_REPORT}
+ *     byte   length        followed by that many bytes of the address the server is known by in A records,
+ *                          empty to use the address the report came from
+ *     int    active        connections being served right now
+ *     int    capacity      connections that can be served at once
+ *     byte   count         number of client subnets, each one being:
+ *         byte   length    followed by that many bytes of the subnet, see {@link #subnet(InetAddress)}
+ *         int    latency   smoothed round trip reported by clients in that subnet, in microseconds, see
+ *                          {@link WebRequest#rtt}
+ * </pre>
+ */
+public class LoadReport {
+	/** Most subnets sent in one report. */
+	private static final int MAX_SUBNETS = 0xFF;
+
+	public final String address;
+	public final int active;
+	public final int capacity;
+	/** Latency in microseconds, keyed by subnet. */
+	public final Map<String, Integer> latencies;
+
+	public LoadReport(String address, int active, int capacity, Map<String, Integer> latencies) {
+		this.address = address;
+		this.active = active;
+		this.capacity = capacity;
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Groups client addresses that are likely to be near each other: a /24 for IPv4 and a /48 for IPv6.
+	 * @param address A client address.
+	 * @return The subnet, as a string.
+	 */
+	public static String subnet(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		StringBuilder sb = new StringBuilder();
+		if (bytes.length == 4) {
+			sb.append(bytes[0] & 0xFF).append('.').append(bytes[1] & 0xFF).append('.').append(bytes[2] & 0xFF).append(".0/24");
+		} else {
+			for (int i = 0; i < 6; i += 2)
+				sb.append(Integer.toHexString((bytes[i] & 0xFF) << 8 | bytes[i + 1] & 0xFF)).append(':');
+			sb.append(":/48");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes this report into a buffer, starting at its position. Subnets that do not fit are left out.
+	 * @param buff Buffer to write to.
+	 * @throws IllegalArgumentException Throws if the address is too long, or the buffer cannot hold the header.
+	 */
+	public void encode(ByteBuffer buff) {
+		try {
+			buff.put(DnsMessage.LOAD_REPORT);
+			DnsMessage.putString(buff, address);
+			buff.putInt(active);
+			buff.putInt(capacity);
+
+			int countAt = buff.position();
+			int count = 0;
+			buff.put((byte) 0);
+			for (Map.Entry<String, Integer> entry : latencies.entrySet()) {
+				int start = buff.position();
+				try {
+					DnsMessage.putString(buff, entry.getKey());
+					buff.putInt(entry.getValue());
+				} catch (BufferOverflowException | IllegalArgumentException e) {
+					buff.position(start);
+					break;
+				}
+				if (++count == MAX_SUBNETS) break;
+			}
+			buff.put(countAt, (byte) count);
+		} catch (BufferOverflowException e) {
+			throw new IllegalArgumentException("Report does not fit in the buffer.");
+		}
+	}
+
+	/**
+	 * Reads a report from a buffer, from its position up to its limit.
+	 * @param buff Buffer to read from.
+	 * @return The report read.
+	 * @throws IllegalArgumentException Throws if the buffer does not hold a valid report.
+	 */
+	public static LoadReport decode(ByteBuffer buff) {
+		try {
+			byte kind = buff.get();
+			if (kind != DnsMessage.LOAD_REPORT) throw new IllegalArgumentException("Not a load report: " + kind);
+			String address = DnsMessage.getString(buff);
+			int active = buff.getInt();
+			int capacity = buff.getInt();
+			int count = buff.get() & 0xFF;
+			Map<String, Integer> latencies = new LinkedHashMap<>();
+			for (int i = 0; i < count; i++) {
+				String subnet = DnsMessage.getString(buff);
+				latencies.put(subnet, buff.getInt());
+			}
+			return new LoadReport(address, active, capacity, latencies);
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated report.");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %d/%d %s", address, active, capacity, latencies);
+	}
+}
@@ -3,7 +3,9 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Scanner;
 
 /**
@@ -17,25 +19,72 @@ public class Main {
 	private static final int
 		DEFAULT_WEB_PORT = 8080,
 		DEFUALT_DNS_PORT = 5353;
+	/** Flags of the client's load test mode. */
+	private static final String
+		FLAG_LOAD = "--load",
+		FLAG_WORKERS = "--workers",
+		FLAG_DURATION = "--duration",
+		FLAG_REQUESTS = "--requests",
+		FLAG_RATE = "--rate";
 	/** Cli command options */
 	private static final String
 		COMMAND_CLIENT = "client",
 		COMMAND_WEB = "web",
-		COMMAND_DNS = "dns";
+		COMMAND_DNS = "dns",
+		COMMAND_CACHE = "cache";
+
+	/** Optional tuning keys that may appear in the config file. */
+	private static final String
+		OPTION_DNS_WORKERS = "dns_workers",
+		OPTION_DNS_CACHE_SIZE = "dns_cache_size",
+		OPTION_DNS_NEGATIVE_TTL = "dns_negative_ttl",
+		OPTION_DNS_UPSTREAM_TIMEOUT = "dns_upstream_timeout",
+		OPTION_DNS_UPSTREAM_DEADLINE = "dns_upstream_deadline",
+		OPTION_DNS_MAX_PENDING = "dns_max_pending",
+		OPTION_DNS_TRANSPORT = "dns_transport",
+		OPTION_DNS_CHANNELS = "dns_channels",
+		OPTION_DNS_RELOAD_INTERVAL = "dns_reload_interval",
+		OPTION_DNS_POLICY = "dns_policy",
+		OPTION_WEB_REPORT_DNS = "web_report_dns",
+		OPTION_WEB_REPORT_ADDRESS = "web_report_address",
+		OPTION_WEB_REPORT_INTERVAL = "web_report_interval",
+		OPTION_WEB_MAX_CONNECTIONS = "web_max_connections",
+		OPTION_WEB_DRAIN_TIMEOUT = "web_drain_timeout",
+		OPTION_WEB_ENGINE = "web_engine",
+		OPTION_WEB_SELECTORS = "web_selectors",
+		OPTION_WEB_CACHE_MB = "web_cache_mb",
+		OPTION_WEB_CACHE_FILE_KB = "web_cache_file_kb",
+		OPTION_WEB_CONTENT_DIR = "web_content_dir",
+		OPTION_WEB_RESCAN_INTERVAL = "web_rescan_interval",
+		OPTION_WEB_KEEP_ALIVE = "web_keep_alive",
+		OPTION_CLIENT_CONNECTIONS = "client_connections",
+		OPTION_CLIENT_SEGMENT_KB = "client_segment_kb",
+		OPTION_CLIENT_MAX_PER_HOST = "client_max_per_host",
+		OPTION_CLIENT_IDLE_TIMEOUT = "client_idle_timeout",
+		OPTION_CLIENT_PREFETCH_KB = "client_prefetch_kb",
+		OPTION_CLIENT_PREFETCH_CACHE_KB = "client_prefetch_cache_kb",
+		OPTION_CACHE_PORT = "cache_port",
+		OPTION_CACHE_DIR = "cache_dir",
+		OPTION_CACHE_MB = "cache_mb",
+		OPTION_CACHE_POLICY = "cache_policy";
+	/** Directory an edge server keeps its cache in, unless configured. */
+	private static final String DEFAULT_CACHE_DIR = "edge-cache";
 
 	/** Loaded default ports. */
 	private static int
 		dnsPort = DEFUALT_DNS_PORT,
 		webPort = DEFAULT_WEB_PORT;
+	/** Any other key/value pairs found in the config file. */
+	private static HashMap<String, String> options = new HashMap<>();
 
 	public static void main(String[] args) throws IOException, URISyntaxException {
 
-		/** Load ports from config file. */
-		loadPortConfigurations(CONFIG_FILE);
+		/** Load ports and options from config file. */
+		loadConfigurations(CONFIG_FILE);
 
 		switch(args[0].toLowerCase()) {
 			case COMMAND_CLIENT:
-				runClient(webPort, dnsPort, args[1]);
+				runClient(webPort, dnsPort, args[1], Arrays.copyOfRange(args, 2, args.length));
 				break;
 			case COMMAND_WEB:
 				runWeb(webPort, Arrays.copyOfRange(args, 1, args.length));
@@ -43,40 +92,104 @@ public class Main {
 			case COMMAND_DNS:
 				runDNS(dnsPort, args[1]);
 				break;
+			case COMMAND_CACHE:
+				runCache(intOption(OPTION_CACHE_PORT, webPort), args[1]);
+				break;
 			default:
-				System.out.println("WRONG! Usage: app <client|dns|server> <configFile1.txt[...]>");
+				System.out.println("WRONG! Usage: app <client|dns|web|cache> <configFile1.txt[...]>");
 		}
 	}
 
 	/**
-	 * Loads ports from a file.
+	 * Loads ports, and any other options from a file. Every line is a key followed by its value.
 	 * @param filename Filename to load ports from.
 	 * @throws FileNotFoundException Thrown if the file does not exist.
 	 */
-	private static void loadPortConfigurations(String filename) throws FileNotFoundException {
+	private static void loadConfigurations(String filename) throws FileNotFoundException {
 		Scanner scanner = new Scanner(new FileInputStream(new File(filename)));
 		while(scanner.hasNext()) {
-			switch(scanner.next()) {
+			String key = scanner.next();
+			switch(key) {
 				case "dns":
 					dnsPort = scanner.nextInt();
 					break;
 				case "web":
 					webPort = scanner.nextInt();
 					break;
+				default:
+					if (scanner.hasNext()) options.put(key, scanner.next());
 			}
 		}
 		scanner.close();
 	}
 
 	/**
-	 * Runs the client application.
+	 * Gets a numeric option loaded from the config file.
+	 * @param key Key of the option.
+	 * @param defaultValue Value to use if the option is missing or invalid.
+	 * @return The configured value, or the default.
+	 */
+	private static int intOption(String key, int defaultValue) {
+		try {
+			return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Runs the client application, or a load test through it when given {@code --load}.
 	 * @param webPort Port to use for connecting to web servers by tcp.
 	 * @param dnsPort Port to use for resolving dns queries by udp (Of the loacl dns server).
 	 * @param localDnsIp Ip address of the loacl dns server.
+	 * @param flags Flags of the load test: {@code --load workload [--workers n] [--duration seconds] [--requests n]
+	 * [--rate requests/s]}.
 	 */
-	private static void runClient(int webPort, int dnsPort, String localDnsIp) {
+	private static void runClient(int webPort, int dnsPort, String localDnsIp, String... flags) {
+		HashMap<String, String> values = new HashMap<>();
+		for (int i = 0; i + 1 < flags.length; i += 2) values.put(flags[i], flags[i + 1]);
+		boolean load = values.containsKey(FLAG_LOAD);
+		int workers = load ? Integer.parseInt(values.getOrDefault(FLAG_WORKERS, String.valueOf(LoadGenerator.DEFAULT_WORKERS))) : 0;
+
 		Client client = new Client(webPort, dnsPort, localDnsIp);
-		client.run(System.in, System.out);
+		client.setConnectionPool(
+			// Every worker of a load test gets its own connection, unless limited on purpose
+			intOption(OPTION_CLIENT_MAX_PER_HOST, Math.max(workers, ConnectionPool.DEFAULT_MAX_PER_HOST)),
+			intOption(OPTION_CLIENT_IDLE_TIMEOUT, ConnectionPool.DEFAULT_IDLE_TIMEOUT)
+		);
+		client.setSegments(
+			intOption(OPTION_CLIENT_CONNECTIONS, Client.DEFAULT_CONNECTIONS),
+			intOption(OPTION_CLIENT_SEGMENT_KB, (int) (Client.DEFAULT_SEGMENT_SIZE >> 10)) * 1024L
+		);
+		int prefetchKb = intOption(OPTION_CLIENT_PREFETCH_KB, -1);
+		client.setPrefetch(
+			prefetchKb < 0 ? -1 : prefetchKb * 1024L,
+			intOption(OPTION_CLIENT_PREFETCH_CACHE_KB, (int) (Prefetcher.DEFAULT_BUDGET >> 10)) * 1024L
+		);
+		if (!load) {
+			client.run(System.in, System.out);
+			return;
+		}
+
+		client.setKeepFiles(false);
+		try {
+			LoadGenerator generator = new LoadGenerator(client, values.get(FLAG_LOAD));
+			generator.setWorkers(workers);
+			// Runs for the default duration, unless only a number of requests was asked for
+			boolean requestsOnly = values.containsKey(FLAG_REQUESTS) && !values.containsKey(FLAG_DURATION);
+			generator.setLimits(
+				Integer.parseInt(values.getOrDefault(FLAG_DURATION, requestsOnly ? "0" : String.valueOf(LoadGenerator.DEFAULT_DURATION))),
+				Long.parseLong(values.getOrDefault(FLAG_REQUESTS, "0"))
+			);
+			generator.setRate(Double.parseDouble(values.getOrDefault(FLAG_RATE, "0")));
+			generator.run(System.out);
+		} catch (IOException e) {
+			System.out.println("ERROR - Could not read the workload: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.out.println("ERROR - " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
@@ -91,8 +204,20 @@ public class Main {
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		}
-		if (dns != null)
+		if (dns != null) {
+			dns.setWorkers(intOption(OPTION_DNS_WORKERS, Runtime.getRuntime().availableProcessors()));
+			dns.setCacheSize(intOption(OPTION_DNS_CACHE_SIZE, Dns.DEFAULT_CACHE_SIZE));
+			dns.setNegativeTtl(intOption(OPTION_DNS_NEGATIVE_TTL, Dns.DEFAULT_NEGATIVE_TTL));
+			dns.setUpstreamLimits(
+				intOption(OPTION_DNS_UPSTREAM_TIMEOUT, Dns.DEFAULT_UPSTREAM_TIMEOUT),
+				intOption(OPTION_DNS_UPSTREAM_DEADLINE, Dns.DEFAULT_UPSTREAM_DEADLINE),
+				intOption(OPTION_DNS_MAX_PENDING, Dns.DEFAULT_MAX_PENDING)
+			);
+			dns.setTransport(options.getOrDefault(OPTION_DNS_TRANSPORT, Dns.TRANSPORT_SOCKET), intOption(OPTION_DNS_CHANNELS, 1));
+			dns.setReloadInterval(intOption(OPTION_DNS_RELOAD_INTERVAL, Dns.DEFAULT_RELOAD_INTERVAL));
+			dns.setPolicy(options.getOrDefault(OPTION_DNS_POLICY, LoadBalancer.POLICY_FIRST));
 			dns.run();
+		}
 	}
 
 	/**
@@ -103,6 +228,54 @@ public class Main {
 	 */
 	private static void runWeb(int port, String...files) throws IOException {
 		Web server = new Web(port, files);
+		String engine = options.getOrDefault(OPTION_WEB_ENGINE, Web.ENGINE_THREADS);
+		server.setEngine(engine, intOption(OPTION_WEB_SELECTORS, 1));
+		server.setContent(options.get(OPTION_WEB_CONTENT_DIR), intOption(OPTION_WEB_RESCAN_INTERVAL, ContentCatalog.DEFAULT_RESCAN_INTERVAL));
+		server.setContentCache(
+			intOption(OPTION_WEB_CACHE_MB, (int) (ContentCache.DEFAULT_BUDGET >> 20)) * 1024L * 1024,
+			intOption(OPTION_WEB_CACHE_FILE_KB, (int) (ContentCache.DEFAULT_MAX_SMALL >> 10)) * 1024L
+		);
+		server.setConnectionLimits(
+			intOption(OPTION_WEB_MAX_CONNECTIONS, engine.equals(Web.ENGINE_NIO) ? Web.DEFAULT_NIO_MAX_CONNECTIONS : Web.DEFAULT_MAX_CONNECTIONS),
+			intOption(OPTION_WEB_DRAIN_TIMEOUT, Web.DEFAULT_DRAIN_TIMEOUT)
+		);
+		server.setKeepAlive(intOption(OPTION_WEB_KEEP_ALIVE, Web.DEFAULT_KEEP_ALIVE));
+		if (options.containsKey(OPTION_WEB_REPORT_DNS))
+			server.setReporting(options.get(OPTION_WEB_REPORT_DNS), dnsPort,
+				options.getOrDefault(OPTION_WEB_REPORT_ADDRESS, ""),
+				intOption(OPTION_WEB_REPORT_INTERVAL, Web.DEFAULT_REPORT_INTERVAL));
+		// Finish the downloads in progress on ctrl-c
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+		server.run(System.out);
+	}
+
+	/**
+	 * Starts an edge server in front of an origin web server.
+	 * @param port Port to listen for connections on.
+	 * @param origin The origin web server, in the format {@code ip[:port]}, on the web port unless given.
+	 */
+	private static void runCache(int port, String origin) {
+		DiskCache cache;
+		try {
+			cache = new DiskCache(
+				Paths.get(options.getOrDefault(OPTION_CACHE_DIR, DEFAULT_CACHE_DIR)),
+				intOption(OPTION_CACHE_MB, (int) (DiskCache.DEFAULT_BUDGET >> 20)) * 1024L * 1024,
+				options.getOrDefault(OPTION_CACHE_POLICY, DiskCache.POLICY_LRU)
+			);
+		} catch (IOException e) {
+			System.out.println("ERROR - Could not open the cache: " + e.getMessage());
+			return;
+		} catch (IllegalArgumentException e) {
+			System.out.println("ERROR - " + e.getMessage());
+			return;
+		}
+		Edge server = new Edge(port, origin, webPort, cache);
+		server.setConnectionLimits(
+			intOption(OPTION_WEB_MAX_CONNECTIONS, Web.DEFAULT_MAX_CONNECTIONS),
+			intOption(OPTION_WEB_DRAIN_TIMEOUT, Web.DEFAULT_DRAIN_TIMEOUT),
+			intOption(OPTION_WEB_KEEP_ALIVE, Web.DEFAULT_KEEP_ALIVE)
+		);
+		Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
 		server.run(System.out);
 	}
 
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Gets a client ready for the links of the pages it fetched, before the user follows one of them.
+ * <br />
+ * The hosts of the links are resolved at once, a connection to each is opened and left idle in the client's pool,
+ * and the first bytes of every file that would be downloaded are fetched into a cache. Following a link then skips the
+ * dns lookups and the connection setup, and a download starts from the end of its cached head.
+ * <br />
+ * Heads are kept under a total byte budget, least recently fetched evicted first, and each is used at most once.
+ */
+class Prefetcher {
+	/** Default byte budget of all heads. */
+	static final long DEFAULT_BUDGET = 16L * 1024 * 1024;
+	/** Most links prefetched from one page, the first ones on it. */
+	private static final int MAX_LINKS = 32;
+	/** Most characters of a page searched for links. */
+	private static final int MAX_PAGE = 64 * 1024;
+	/** Links fetched at once. */
+	private static final int THREADS = 4;
+
+	/** A host with at least one dot, an optional port, then a path, with or without the protocol. */
+	private static final Pattern LINK = Pattern.compile("(?:http://)?[A-Za-z0-9-]+(?:\\.[A-Za-z0-9-]+)+(?::\\d+)?/\\S*");
+
+	private final Client client;
+	private final long headSize;
+	private final long budget;
+	/** Heads by url, in insertion order, least recently fetched first. */
+	private final LinkedHashMap<String, Head> heads = new LinkedHashMap<>();
+	/** Bytes held by heads. */
+	private long used;
+	/** Urls being prefetched, so a page fetched twice does not fetch its links twice. */
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	private final ExecutorService executor;
+
+	/**
+	 * @param client The client to prefetch for.
+	 * @param headSize Bytes fetched from the start of each file, 0 to only resolve hosts and open connections.
+	 * @param budget Most bytes of heads kept at once.
+	 */
+	Prefetcher(Client client, long headSize, long budget) {
+		this.client = client;
+		this.budget = Math.max(0, budget);
+		this.headSize = Math.min(Math.max(0, headSize), this.budget);
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(THREADS, task -> {
+			Thread thread = new Thread(task, "client-prefetch-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Starts prefetching the links of a page, and returns without waiting for them.
+	 * @param text Text of the page.
+	 */
+	void page(CharSequence text) {
+		Set<URL> links = new LinkedHashSet<>();
+		Matcher matcher = LINK.matcher(text);
+		while (links.size() < MAX_LINKS && matcher.find()) {
+			try {
+				links.add(client.toUrl(matcher.group()));
+			} catch (IllegalStateException ignored) {} // Not a url after all
+		}
+		// Lookups are sent all at once, so the slowest host sets the pace rather than all of them together
+		for (URL link : links) client.dnsLookupAsync(link.getHost());
+		for (URL link : links) {
+			String key = link.toString();
+			if (!pending.add(key)) continue;
+			executor.execute(() -> {
+				try {
+					// A head still cached from an earlier visit is kept, only the connection is opened again
+					Head head = client.prefetch(link, has(key) ? 0 : headSize);
+					if (head != null) put(key, head);
+				} catch (IOException | RuntimeException ignored) {
+					// The link will just be fetched cold
+				} finally {
+					pending.remove(key);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Wraps a stream of text, keeping the start of it to search for links once complete.
+	 * @param out Where the text goes.
+	 * @return The wrapper, whose {@link Object#toString()} is the text kept.
+	 */
+	static Page capture(Appendable out) {
+		return new Page(out);
+	}
+
+	/**
+	 * Takes the head of a file out of the cache.
+	 * @param url Url of the file, as given to {@link Client#toUrl}.
+	 * @return The head, null if none was prefetched.
+	 */
+	synchronized Head take(String url) {
+		Head head = heads.remove(url);
+		if (head != null) used -= head.bytes.length;
+		return head;
+	}
+
+	private synchronized boolean has(String url) {
+		return heads.containsKey(url);
+	}
+
+	private synchronized void put(String url, Head head) {
+		Head old = heads.put(url, head);
+		if (old != null) used -= old.bytes.length;
+		used += head.bytes.length;
+		Iterator<Head> eldest = heads.values().iterator();
+		while (used > budget && eldest.hasNext()) {
+			used -= eldest.next().bytes.length;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Stops prefetching. Heads already fetched are kept.
+	 */
+	void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * The first bytes of a file.
+	 */
+	static class Head {
+		final byte[] bytes;
+		/** Validator of the file when the head was fetched, to tell if it has changed since. */
+		final byte[] validator;
+
+		Head(byte[] bytes, byte[] validator) {
+			this.bytes = bytes;
+			this.validator = validator;
+		}
+	}
+
+	/**
+	 * Passes text through, keeping up to {@link #MAX_PAGE} characters of it.
+	 */
+	static class Page implements Appendable {
+		private final Appendable out;
+		private final StringBuilder kept = new StringBuilder();
+
+		private Page(Appendable out) {
+			this.out = out;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq) throws IOException {
+			return append(csq, 0, csq.length());
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) throws IOException {
+			out.append(csq, start, end);
+			kept.append(csq, start, Math.min(end, start + Math.max(0, MAX_PAGE - kept.length())));
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) throws IOException {
+			out.append(c);
+			if (kept.length() < MAX_PAGE) kept.append(c);
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return kept.toString();
+		}
+	}
+}
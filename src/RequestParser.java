@@ -0,0 +1,50 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the requests of the web protocol out of bytes read from a connection, one chunk at a time. Each request is
+ * terminated by {@link Web#PROTOCOL_DELIM}, which may be split across chunks. Nothing past the end of a request is
+ * consumed, so requests sent back to back are read one at a time.
+ */
+public class RequestParser {
+	/** Longest request accepted, delimiter included. */
+	static final int MAX_REQUEST = 4096;
+
+	private static final byte[] DELIM = Web.PROTOCOL_DELIM.getBytes(StandardCharsets.ISO_8859_1);
+
+	/** The request so far. Grows as needed. */
+	private byte[] request = new byte[64];
+	private int length;
+	/** Bytes of the delimiter matched at the end of the request so far. */
+	private int matched;
+
+	/**
+	 * Reads bytes until the end of a request.
+	 * @param in Bytes read from the connection, from its position to its limit. Left positioned after the last byte used.
+	 * @return The request without its delimiter, or null if the end has not been read yet.
+	 * @throws IllegalArgumentException Throws if the request is longer than {@link #MAX_REQUEST}.
+	 */
+	public String next(ByteBuffer in) {
+		while (in.hasRemaining()) {
+			byte b = in.get();
+			if (length == request.length) {
+				if (length == MAX_REQUEST) throw new IllegalArgumentException("Request too long.");
+				request = Arrays.copyOf(request, Math.min(MAX_REQUEST, length * 2));
+			}
+			request[length++] = b;
+
+			// The delimiter has no repeating prefix except its first byte, so a mismatch only needs to check that byte
+			if (b == DELIM[matched]) matched++;
+			else matched = b == DELIM[0] ? 1 : 0;
+
+			if (matched == DELIM.length) {
+				String value = new String(request, 0, length - DELIM.length, StandardCharsets.UTF_8);
+				length = 0;
+				matched = 0;
+				return value;
+			}
+		}
+		return null;
+	}
+}
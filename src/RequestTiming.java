@@ -0,0 +1,16 @@
+/**
+ * Where the time of one {@link Client#get} went, all in nanoseconds. A phase that was skipped, such as the lookup of a
+ * cached name or the connect of a reused connection, takes close to 0.
+ */
+class RequestTiming {
+	/** Resolving the host. */
+	long dns;
+	/** Taking a connection from the pool, opening one if none was idle. */
+	long connect;
+	/** From sending the request to receiving the status of the response. */
+	long firstByte;
+	/** Receiving the rest of the response. */
+	long transfer;
+	/** Bytes of content received. */
+	long bytes;
+}
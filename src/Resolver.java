@@ -0,0 +1,169 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A stub resolver for clients, asking one dns server for every name.
+ * <br />
+ * All lookups share one socket bound to an ephemeral port, so any number of them can be outstanding at once, and
+ * responses are matched to their queries by transaction id on a receiving thread. Answers are kept in a
+ * {@link DnsCache} until their ttl runs out, and a lookup of a name that is already being resolved waits on the same
+ * query. Unanswered queries are resent, with the timeout doubling each time, until a deadline.
+ */
+class Resolver implements Closeable {
+	/** Defaults for the names cached, the milliseconds before a query is first resent, and before it is given up. */
+	public static final int
+		DEFAULT_CACHE_SIZE = 1000,
+		DEFAULT_TIMEOUT = 500,
+		DEFAULT_DEADLINE = 3000;
+	private static final int PACKET_SIZE = 1026;
+
+	private final InetSocketAddress server;
+	private final DatagramSocket socket;
+	private final DnsCache cache;
+	private final int timeout, deadline;
+	/** Outstanding queries, by transaction id and by name. */
+	private final ConcurrentHashMap<Integer, Query> queries = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Query> inFlight = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "resolver-retries");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Creates a resolver, and starts receiving responses.
+	 * @param server Address of the dns server, in the format {@code ip[:port]}.
+	 * @param defaultPort Port of the dns server, if not part of its address.
+	 * @param cacheSize Names to keep answers for.
+	 * @param timeout Milliseconds before an unanswered query is first resent.
+	 * @param deadline Milliseconds before an unanswered query is given up on.
+	 * @throws SocketException Throws if the socket could not be opened.
+	 */
+	Resolver(String server, int defaultPort, int cacheSize, int timeout, int deadline) throws SocketException {
+		String[] tokens = server.split(":");
+		this.server = new InetSocketAddress(tokens[0], tokens.length > 1 ? Integer.parseInt(tokens[1]) : defaultPort);
+		this.cache = new DnsCache(cacheSize);
+		this.timeout = Math.max(1, timeout);
+		this.deadline = Math.max(this.timeout, deadline);
+		socket = new DatagramSocket();
+		Thread receiver = new Thread(this::receive, "resolver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Resolves a name.
+	 * @param name The name.
+	 * @return The records of the answer, best first, once they arrive. Completes exceptionally with a
+	 * {@link SocketTimeoutException} if the server did not answer by the deadline.
+	 */
+	CompletableFuture<List<DnsRecord>> resolve(String name) {
+		List<DnsRecord> cached = cache.get(name);
+		if (cached != null) return CompletableFuture.completedFuture(cached);
+
+		Query created = new Query(name);
+		Query query = inFlight.putIfAbsent(name, created);
+		if (query != null) return query.future;
+
+		int id;
+		do {
+			id = ThreadLocalRandom.current().nextInt() & 0xFFFF;
+		} while (queries.putIfAbsent(id, created) != null);
+		created.id = id;
+		created.deadline = System.currentTimeMillis() + deadline;
+		int queryId = id;
+		created.future.whenComplete((answers, error) -> {
+			queries.remove(queryId, created);
+			inFlight.remove(name, created);
+		});
+		send(created);
+		return created.future;
+	}
+
+	/**
+	 * Sends a query, and schedules it to be resent if it is not answered in time.
+	 */
+	private void send(Query query) {
+		if (query.future.isDone()) return;
+		long now = System.currentTimeMillis();
+		if (now >= query.deadline) {
+			query.future.completeExceptionally(new SocketTimeoutException("Dns timeout for " + query.name));
+			return;
+		}
+		try {
+			byte[] data = new byte[PACKET_SIZE];
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			DnsMessage.request(query.id, query.name).encode(buffer);
+			socket.send(new DatagramPacket(data, buffer.position(), server));
+		} catch (IOException e) {
+			// Resent on the next attempt, like a lost packet
+		}
+		long wait = Math.min((long) timeout << Math.min(query.attempt++, 16), query.deadline - now);
+		try {
+			retries.schedule(() -> send(query), wait, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			query.future.completeExceptionally(new SocketException("Resolver closed."));
+		}
+	}
+
+	/**
+	 * Receives responses until the socket is closed, completing the queries they answer.
+	 */
+	private void receive() {
+		byte[] data = new byte[PACKET_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		DatagramPacket packet = new DatagramPacket(data, data.length);
+		while (!socket.isClosed()) {
+			DnsMessage message;
+			try {
+				packet.setLength(data.length);
+				socket.receive(packet);
+				buffer.clear();
+				buffer.limit(packet.getLength());
+				message = DnsMessage.decode(buffer);
+			} catch (IOException e) {
+				continue;
+			} catch (IllegalArgumentException e) {
+				continue; // Not a dns message
+			}
+			// Only the server's answers to our own questions are taken
+			if (message.kind != DnsMessage.RESPONSE || !server.equals(packet.getSocketAddress())) continue;
+			Query query = queries.get(message.id);
+			if (query == null || !query.name.equals(message.name)) continue;
+			cache.put(query.name, message.answers);
+			query.future.complete(message.answers);
+		}
+	}
+
+	/**
+	 * Stops resolving. Lookups still outstanding fail.
+	 */
+	@Override
+	public void close() {
+		retries.shutdownNow();
+		socket.close();
+		for (Query query : queries.values()) query.future.completeExceptionally(new SocketException("Resolver closed."));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s, %d outstanding", cache, queries.size());
+	}
+
+	/** A query sent to the server, with everyone waiting on its answer. */
+	private static class Query {
+		final String name;
+		final CompletableFuture<List<DnsRecord>> future = new CompletableFuture<>();
+		int id;
+		int attempt;
+		long deadline;
+
+		Query(String name) {
+			this.name = name;
+		}
+	}
+}
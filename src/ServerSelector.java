@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Scores the addresses of web servers a client has used, to pick the best one for each request.
+ * <br />
+ * Each address keeps a moving average of its latency, from connection setup and the wait for the first byte of each
+ * response, and of its throughput over larger transfers. Failures add a penalty that halves every
+ * {@link #PENALTY_HALF_LIFE} ms, so a server that failed is avoided for a while, then tried again.
+ * Addresses never used score best, so each one gets tried, and ties keep the order the dns server gave.
+ * Safe to use from multiple threads.
+ */
+class ServerSelector {
+	/** Weight of a new sample in the moving averages. */
+	private static final double ALPHA = 0.3;
+	/** Milliseconds added to the latency of an address for each failure, before it decays. */
+	private static final double FAILURE_PENALTY = 2000;
+	/** Milliseconds for a failure penalty to halve. */
+	private static final double PENALTY_HALF_LIFE = 10000;
+	/** Bytes a request is assumed to fetch when ranking, so throughput counts as well as latency. */
+	private static final double TYPICAL_REQUEST = 1024 * 1024;
+	/** Smallest transfer, in bytes, whose time says something about throughput rather than latency. */
+	static final long MIN_THROUGHPUT_SAMPLE = 64 * 1024;
+
+	private final ConcurrentHashMap<String, Score> scores = new ConcurrentHashMap<>();
+
+	/**
+	 * Orders the addresses of a server, best first.
+	 * @param hosts Addresses, in the order the dns server gave them.
+	 * @param port Port of the server.
+	 * @return A new list of the same addresses.
+	 */
+	List<String> rank(List<String> hosts, int port) {
+		long now = System.currentTimeMillis();
+		List<String> ranked = new ArrayList<>(hosts);
+		// Stable, so addresses that score the same keep their order
+		ranked.sort(Comparator.comparingDouble(host -> cost(host, port, now)));
+		return ranked;
+	}
+
+	/**
+	 * Picks the addresses to open more connections to, spreading them in proportion to the throughput of each address.
+	 * @param hosts Addresses, best first.
+	 * @param port Port of the server.
+	 * @param count Connections to open.
+	 * @return An address for each connection, best first.
+	 */
+	List<String> spread(List<String> hosts, int port, int count) {
+		long now = System.currentTimeMillis();
+		double best = 0;
+		double[] rates = new double[hosts.size()];
+		for (int i = 0; i < rates.length; i++) {
+			Score score = scores.get(hosts.get(i) + ":" + port);
+			rates[i] = score == null ? 0 : score.throughput();
+			best = Math.max(best, rates[i]);
+		}
+		for (int i = 0; i < rates.length; i++) {
+			// Unmeasured addresses are assumed as fast as the best, so they get measured
+			if (rates[i] == 0) rates[i] = best > 0 ? best : 1;
+			Score score = scores.get(hosts.get(i) + ":" + port);
+			if (score != null) rates[i] /= 1 + score.penalty(now) / FAILURE_PENALTY;
+		}
+		List<String> picked = new ArrayList<>(count);
+		int[] assigned = new int[hosts.size()];
+		for (int n = 0; n < count; n++) {
+			int pick = 0;
+			for (int i = 1; i < rates.length; i++)
+				if (rates[i] / (assigned[i] + 1) > rates[pick] / (assigned[pick] + 1)) pick = i;
+			assigned[pick]++;
+			picked.add(hosts.get(pick));
+		}
+		return picked;
+	}
+
+	/**
+	 * Records how long an address took to answer, either to connect or to send the first byte of a response.
+	 * @param host Address of the server.
+	 * @param port Port of the server.
+	 * @param nanos The time taken.
+	 */
+	void latency(String host, int port, long nanos) {
+		score(host, port).latency(nanos / 1e6);
+	}
+
+	/**
+	 * Records a transfer from an address. Transfers too small to tell throughput apart from latency are ignored.
+	 * @param host Address of the server.
+	 * @param port Port of the server.
+	 * @param bytes Bytes received.
+	 * @param nanos The time taken to receive them.
+	 */
+	void transfer(String host, int port, long bytes, long nanos) {
+		if (bytes >= MIN_THROUGHPUT_SAMPLE && nanos > 0) score(host, port).throughput(bytes * 1e9 / nanos);
+	}
+
+	/**
+	 * Records a failure to connect to an address, or to get a response from it.
+	 * @param host Address of the server.
+	 * @param port Port of the server.
+	 */
+	void failed(String host, int port) {
+		score(host, port).failed(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return Milliseconds a typical request to an address is expected to take, failure penalty included.
+	 */
+	private double cost(String host, int port, long now) {
+		Score score = scores.get(host + ":" + port);
+		if (score == null) return 0;
+		double throughput = score.throughput();
+		return score.latency() + score.penalty(now) + (throughput > 0 ? TYPICAL_REQUEST * 1e3 / throughput : 0);
+	}
+
+	private Score score(String host, int port) {
+		return scores.computeIfAbsent(host + ":" + port, key -> new Score());
+	}
+
+	@Override
+	public String toString() {
+		long now = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder();
+		scores.forEach((address, score) -> sb.append(String.format("%s: %.1f ms, %.1f MB/s, %.0f ms penalty%n",
+			address, score.latency(), score.throughput() / 1e6, score.penalty(now))));
+		return sb.toString();
+	}
+
+	/** What is known about one address. */
+	private static class Score {
+		/** Moving averages, 0 until the first sample. */
+		private double latency, throughput;
+		/** Penalty for failures, as of {@link #penalized}. */
+		private double penalty;
+		private long penalized;
+
+		synchronized void latency(double millis) {
+			latency = latency == 0 ? millis : latency + ALPHA * (millis - latency);
+		}
+
+		synchronized void throughput(double bytesPerSecond) {
+			throughput = throughput == 0 ? bytesPerSecond : throughput + ALPHA * (bytesPerSecond - throughput);
+		}
+
+		synchronized void failed(long now) {
+			penalty = penalty(now) + FAILURE_PENALTY;
+			penalized = now;
+		}
+
+		synchronized double latency() {
+			return latency;
+		}
+
+		synchronized double throughput() {
+			return throughput;
+		}
+
+		synchronized double penalty(long now) {
+			return penalty == 0 ? 0 : penalty * Math.pow(0.5, (now - penalized) / PENALTY_HALF_LIFE);
+		}
+	}
+}
@@ -1,128 +1,412 @@
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Arrays;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * A Web server that hosts content.
+ * A Web server that hosts content. Connections are either served on a pool of threads by a {@link ConnectionServer}, or
+ * by a few {@link WebSelector} loops when there are many slow clients. May periodically send a {@link LoadReport} to the
+ * dns server that hands out its address, so clients can be sent to the least loaded or closest server.
  * Created by Frank on 2016-12-02.
  */
 public class Web {
 	/**  */
 	public static final byte
 		STATUS_OK = (byte) 200,
+		STATUS_PARTIAL = (byte) 206,
 		STATUS_NOT_FOUND = (byte) 404;
 	public static final String PROTOCOL_DELIM = "\r\n\r\n";
 
+	/** Default for how often (in seconds) load reports are sent. */
+	static final int DEFAULT_REPORT_INTERVAL = 5;
+	/** Largest report sent, same as a dns packet. */
+	private static final int REPORT_SIZE = 1026;
+	/** Most client subnets tracked for reports. */
+	private static final int MAX_SUBNETS = 64;
+	/** Engines. */
+	static final String
+		ENGINE_THREADS = "threads",
+		ENGINE_NIO = "nio";
+	/** Defaults for connections served at once by each engine, and seconds to let them finish on shutdown. */
+	static final int
+		DEFAULT_MAX_CONNECTIONS = 256,
+		DEFAULT_NIO_MAX_CONNECTIONS = 20000,
+		DEFAULT_DRAIN_TIMEOUT = 30;
+	/** Default seconds a connection may wait for its next request. */
+	static final int DEFAULT_KEEP_ALIVE = 15;
+	/** Seconds a new connection may take to send its first request, whatever the keep-alive timeout. */
+	static final int REQUEST_TIMEOUT = 15;
+	/** Bytes read from a connection at a time. Requests are short, so this is all a waiting connection needs. */
+	static final int READ_BUFFER_SIZE = 512;
+	/** Pending connections the kernel holds while the server is at its cap. */
+	static final int ACCEPT_BACKLOG = 1024;
+
 	private final String[] FILES;
 
 	public final int LOCAL_PORT;
 
+	/** Dns server to send load reports to, null to not send any. */
+	private InetSocketAddress reportTo;
+	/** Address this server is known by in A records, empty to let the dns server use the address reports come from. */
+	private String reportAddress = "";
+	private int reportInterval = DEFAULT_REPORT_INTERVAL;
+	/** Connections being served right now. */
+	private final AtomicInteger active = new AtomicInteger();
+	private int
+		maxConnections = DEFAULT_MAX_CONNECTIONS,
+		drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+	/** Files served, see {@link #setContent(String, int)}. */
+	private ContentCatalog catalog;
+	private String contentDirectory;
+	private int rescanInterval = ContentCatalog.DEFAULT_RESCAN_INTERVAL;
+	/** Contents of served files, null when off. */
+	private ContentCache contentCache = new ContentCache(ContentCache.DEFAULT_BUDGET, ContentCache.DEFAULT_MAX_SMALL);
+	/** How connections are served, see {@link #setEngine(String, int)}. */
+	private String engine = ENGINE_THREADS;
+	private int selectors = 1;
+	private volatile ServerSocketChannel serverChannel;
+	private volatile WebSelector selector;
+	private volatile boolean running = true;
+	private int keepAliveTimeout = DEFAULT_KEEP_ALIVE;
+	/** The threads engine. */
+	private final ConnectionServer threads = new ConnectionServer("web", this::respond, active);
+	/** Released once {@link #run(OutputStream)} has drained. */
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	/** Smoothed time (in microseconds) to serve a request, keyed by client subnet. */
+	private final ConcurrentHashMap<String, Integer> latencies = new ConcurrentHashMap<>();
+
 	public Web(int port, String...files) throws IOException {
 		FILES = files;
 		LOCAL_PORT = port;
 	}
 
 	/**
-	 * Starts the server and enters a connection accepting loop. This method never returns.
+	 * Enables load reports. Must be called before {@link #run(OutputStream)}.
+	 * @param dns Dns server to report to, in the format {@code ip[:port]}.
+	 * @param defaultPort Port to use when the dns server value has none.
+	 * @param address Address this server is known by in A records, empty to use the address reports are sent from.
+	 * @param interval Seconds between reports.
+	 */
+	void setReporting(String dns, int defaultPort, String address, int interval) {
+		int port = defaultPort;
+		if (dns.contains(":")) {
+			String[] tokens = dns.split(":");
+			dns = tokens[0];
+			port = Integer.parseInt(tokens[1]);
+		}
+		reportTo = new InetSocketAddress(dns, port);
+		reportAddress = address;
+		reportInterval = Math.max(1, interval);
+	}
+
+	/**
+	 * Sets how many connections are served at once. Must be called before {@link #run(OutputStream)}.
+	 * @param connections Connections served at once, each on its own worker thread. Further connections wait in the
+	 * accept backlog.
+	 * @param drainSeconds Seconds to let connections in progress finish on shutdown.
+	 */
+	void setConnectionLimits(int connections, int drainSeconds) {
+		maxConnections = Math.max(1, connections);
+		drainTimeout = Math.max(0, drainSeconds);
+	}
+
+	/**
+	 * Sets how long a connection may wait for its next request. Must be called before {@link #run(OutputStream)}.
+	 * @param seconds Seconds a connection may be idle, 0 to close every connection after one response.
+	 */
+	void setKeepAlive(int seconds) {
+		keepAliveTimeout = Math.max(0, seconds);
+	}
+
+	/**
+	 * Sets where content comes from, besides the files given to the constructor. Must be called before
+	 * {@link #run(OutputStream)}.
+	 * @param directory Directory whose files are all served, by their path relative to it. Null for none.
+	 * @param rescanSeconds Seconds between checks for added, changed or removed content, 0 to never check.
+	 */
+	void setContent(String directory, int rescanSeconds) {
+		contentDirectory = directory;
+		rescanInterval = Math.max(0, rescanSeconds);
+	}
+
+	/**
+	 * Sets up the content cache. Must be called before {@link #run(OutputStream)}.
+	 * @param budget Most bytes of small files kept in memory, 0 to turn the cache off and read files on every request.
+	 * @param maxSmall Largest file kept in memory, larger ones are sent straight from their file.
+	 */
+	void setContentCache(long budget, long maxSmall) {
+		contentCache = budget > 0 ? new ContentCache(budget, maxSmall) : null;
+	}
+
+	/**
+	 * Sets how connections are served. Must be called before {@link #run(OutputStream)}.
+	 * @param engine {@link #ENGINE_THREADS} to serve each connection on a worker thread, or {@link #ENGINE_NIO} to serve
+	 * them all from a few non-blocking selector loops.
+	 * @param selectors Number of selector loops in nio mode.
+	 * @throws IllegalArgumentException Throws if the engine is unknown.
+	 */
+	void setEngine(String engine, int selectors) {
+		if (!engine.equals(ENGINE_THREADS) && !engine.equals(ENGINE_NIO))
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		this.engine = engine;
+		this.selectors = Math.max(1, selectors);
+	}
+
+	/**
+	 * Starts the server and serves connections with the configured engine. This method returns once the server is
+	 * shut down (see {@link #stop()}) and the connections in progress have drained.
 	 * @param msgOut Output to write log messages to.
 	 */
 	public void run(OutputStream msgOut) {
 		final PrintWriter writer = new PrintWriter(msgOut);
-		ServerSocket sSocket;
 
-		writer.printf("Starting up server with content: %s\n", Arrays.toString(FILES));
+		catalog = new ContentCatalog(contentDirectory != null ? Paths.get(contentDirectory) : null, FILES);
+		String scanned = catalog.scan();
+		if (!scanned.isEmpty()) writer.printf("Catalog: %s\n", scanned);
+		writer.printf("Starting up server with content: %s\n", catalog);
 		writer.flush();
 		try { // Open the socket
-			sSocket = new ServerSocket(LOCAL_PORT);
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(LOCAL_PORT), ACCEPT_BACKLOG);
 		} catch (IOException e) {
 			writer.printf("Failed to start server on port %d\n", LOCAL_PORT);
 			writer.flush();
 			return;
 
 		}
-		writer.printf("Server started on port %d.\n", LOCAL_PORT);
-		writer.flush();
-
-		while(true) {
-			// accept
-			Socket socket;
-			Scanner in;
-			OutputStream out;
-
+		writer.printf("Server started on port %d, serving up to %d connections with %s.\n", LOCAL_PORT, maxConnections, engine);
+		ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "web-maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (rescanInterval > 0) {
+			maintenance.scheduleWithFixedDelay(() -> {
+				String changes = catalog.scan();
+				if (!changes.isEmpty()) {
+					writer.printf("Catalog: %s\n", changes);
+					writer.flush();
+				}
+			}, rescanInterval, rescanInterval, TimeUnit.SECONDS);
+		}
+		if (reportTo != null) {
 			try {
-				socket = sSocket.accept();
-				in = new Scanner(new BufferedInputStream(socket.getInputStream()));
-				out = socket.getOutputStream();
+				startReporting(maintenance);
+				writer.printf("Reporting load to %s every %ds.\n", reportTo, reportInterval);
 			} catch (IOException e) {
-				writer.printf("ERROR - Could not accept the connection.\n");
-				return;
+				writer.println("ERROR - Could not start load reports.");
 			}
+		}
+		writer.flush();
 
-			in.useDelimiter(PROTOCOL_DELIM);
-			String filename = in.next();
-			if (filename.equals("/")) filename = "/index.txt";
+		try {
+			if (engine.equals(ENGINE_NIO)) runSelector(writer);
+			else runThreads(writer);
+		} finally {
+			maintenance.shutdownNow();
+			writer.println("Server stopped.");
+			writer.flush();
+			stopped.countDown();
+		}
+	}
 
-			try {
-				if (containsFile(filename)) {
-					writer.printf("200 - %s Requested file: %s\n", socket.getInetAddress().toString(), filename);
-					out.write(new byte[]{STATUS_OK});
-					readContent(out, filename);
-				} else {
-					writer.printf("404 - %s Requested file: %s\n", socket.getInetAddress().toString(), filename);
-					out.write(new byte[]{STATUS_NOT_FOUND});
-				}
-				out.flush();
-				out.close();
-			} catch (IOException e) {
-				writer.println("ERROR - There was an error writing to a connection.");
-			}
+	/**
+	 * Accepts connections, serving each on a worker thread.
+	 * @param writer Output for log messages.
+	 */
+	private void runThreads(PrintWriter writer) {
+		threads.setLimits(maxConnections, drainTimeout, keepAliveTimeout);
+		threads.run(serverChannel, writer);
+	}
 
-			writer.flush();
+	/**
+	 * Serves connections from non-blocking selector loops.
+	 * @param writer Output for log messages.
+	 */
+	private void runSelector(PrintWriter writer) {
+		try {
+			selector = new WebSelector(this, serverChannel, selectors, writer);
+		} catch (IOException e) {
+			writer.println("ERROR - Could not open a selector.");
+			return;
+		}
+		if (!running) return; // Stopped before the loops could be woken up
+		selector.run(drainTimeout);
+	}
+
+	/**
+	 * Stops accepting connections, then waits for {@link #run(OutputStream)} to drain the connections in progress.
+	 * Safe to call from a shutdown hook.
+	 */
+	public void stop() {
+		running = false;
+		threads.stop();
+		try {
+			if (serverChannel != null) serverChannel.close();
+			if (selector != null) selector.wakeup();
+			stopped.await();
+		} catch (IOException | InterruptedException ignored) {}
+	}
 
-			// Doesent matter if it works or not... no way to fix it
-			try {socket.close();} catch(IOException ignored) {}
+	/**
+	 * Writes the response to one request.
+	 * @param request The request.
+	 * @param socket Connection to write to.
+	 * @param writer Output for log messages.
+	 * @throws IOException Throws if the connection could not be written to.
+	 */
+	private void respond(WebRequest request, Socket socket, PrintWriter writer) throws IOException {
+		served(socket.getInetAddress(), request);
+		OutputStream out = socket.getOutputStream();
+		SocketChannel channel = socket.getChannel();
+		ContentCatalog.Entry file = catalog.acquire(request.path);
+		if (file == null) {
+			writer.printf("404 - %s Requested file: %s\n", socket.getInetAddress().toString(), request);
+			write(out, request.responseHeader(STATUS_NOT_FOUND, 0));
+			return;
 		}
+		try {
+			writer.printf("%s - %s Requested file: %s\n", request.isRange() ? "206" : "200", socket.getInetAddress().toString(), request);
+			write(out, request.responseHeader(file.size, file.hash));
+			long position = request.start(file.size), length = request.length(file.size);
+			ByteBuffer content = cachedContent(file);
+			// Accepted from a channel, so the file can go straight to the socket
+			if (content != null) {
+				content.position((int) position).limit((int) (position + length));
+				while (content.hasRemaining()) channel.write(content);
+			} else {
+				readContent(channel, file, position, length);
+			}
+		} finally {
+			file.release();
+		}
+	}
+
+	private static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+		out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	int getMaxConnections() {
+		return maxConnections;
+	}
+
+	int activeConnections() {
+		return active.get();
+	}
+
+	/**
+	 * Counts a connection accepted by the nio engine.
+	 */
+	void opened() {
+		active.incrementAndGet();
+	}
+
+	/**
+	 * Counts a connection closed by the nio engine.
+	 */
+	void closed() {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Records the round trip a client reported with a request, for the load reports. The time the server itself takes
+	 * to answer is left out, as it is about the same from any client and says nothing about which server is closer.
+	 * @param address Address of the client.
+	 * @param request The request, ignored if it reports no round trip.
+	 */
+	void served(InetAddress address, WebRequest request) {
+		if (request.rtt >= 0) recordLatency(LoadReport.subnet(address), request.rtt);
+	}
+
+	int getKeepAliveTimeout() {
+		return keepAliveTimeout;
+	}
+
+	/**
+	 * Adds a request to the smoothed latency of a subnet. Each new request counts for an eighth.
+	 * @param subnet Subnet of the client.
+	 * @param micros Round trip reported by the client.
+	 */
+	private void recordLatency(String subnet, long micros) {
+		int sample = (int) Math.min(Integer.MAX_VALUE, micros);
+		if (latencies.size() >= MAX_SUBNETS && !latencies.containsKey(subnet)) return;
+		latencies.merge(subnet, sample, (old, added) -> old + (added - old) / 8);
+	}
+
+	/**
+	 * Starts sending load reports in the background.
+	 * @param maintenance Scheduler to send reports from.
+	 * @throws IOException Throws if the socket to send reports on could not be opened.
+	 */
+	private void startReporting(ScheduledExecutorService maintenance) throws IOException {
+		final DatagramSocket socket = new DatagramSocket();
+		final byte[] buff = new byte[REPORT_SIZE];
+		final DatagramPacket packet = new DatagramPacket(buff, buff.length, reportTo);
+		maintenance.scheduleAtFixedRate(() -> {
+			Map<String, Integer> snapshot = new HashMap<>(latencies);
+			ByteBuffer buffer = ByteBuffer.wrap(buff);
+			try {
+				new LoadReport(reportAddress, active.get(), maxConnections, snapshot).encode(buffer);
+				packet.setLength(buffer.position());
+				socket.send(packet);
+			} catch (IOException | IllegalArgumentException e) {
+				e.printStackTrace(); // Try again next time
+			}
+		}, 0, reportInterval, TimeUnit.SECONDS);
 	}
 
 	/**
-	 * Checks to see if this server has the requested file.
-	 * @param file Name of the requested file.
-	 * @return True if the server has the file available, false otherwise.
+	 * Finds the file served for a request, and holds it open.
+	 * @param request The requested path.
+	 * @return The file, to be released once sent. Null if this server does not have it.
 	 */
-	private boolean containsFile(String file) {
-		String r = file.startsWith("/") ? file.substring(1) : file;
-		for (String s : FILES) if (s.equals(r)) return true;
-		return false;
+	ContentCatalog.Entry acquireFile(String request) {
+		return catalog.acquire(request);
 	}
 
 	/**
-	 * Pipes a file into an output stream.
-	 * @param out Stream to pipe file to.
-	 * @param filename Name of file to stream.
-	 * @throws IOException Throws if something happens while streaming or loading the file.
+	 * Gets the contents of a file from the content cache.
+	 * @param file The file, held by the caller.
+	 * @return A buffer of the whole file, for the caller alone. Null if the cache is off or the file is too large.
+	 * @throws IOException Throws if the file could not be read.
 	 */
-	public void readContent(OutputStream out, String filename) throws IOException {
-		if (filename.equals("/")) filename = "index.txt";
-		if (filename.startsWith("/")) filename = filename.substring(1);
-		FileInputStream fOs = new FileInputStream(new File(filename));
-		pipe(fOs, out);
-		out.flush();
-		fOs.close();
+	ByteBuffer cachedContent(ContentCatalog.Entry file) throws IOException {
+		return contentCache != null ? contentCache.get(file) : null;
 	}
 
 	/**
-	 * Connects an input to an output stream.
-	 * @param in Input stream that pipes...
-	 * @param out ...directly to the output stream.
-	 * @throws IOException Thows if there was an exception reading or writing to streams.
+	 * Sends part of a file into a blocking channel without copying it through user space.
+	 * @param out Channel to send the file to.
+	 * @param file The file to send, held by the caller.
+	 * @param position Offset of the first byte to send.
+	 * @param length Number of bytes to send.
+	 * @throws IOException Throws if something happens while sending or loading the file.
 	 */
-	private void pipe(InputStream in, OutputStream out) throws IOException {
-		int read;
-		byte[] buff = new byte[1024];
-		while((read = in.read(buff)) > 0) {
-			out.write(buff, 0, read);
+	public void readContent(WritableByteChannel out, ContentCatalog.Entry file, long position, long length) throws IOException {
+		long end = position + length;
+		while (position < end) {
+			long sent = file.channel().transferTo(position, end - position, out);
+			if (sent <= 0) throw new IOException("File shrank while sending.");
+			position += sent;
 		}
 	}
 }
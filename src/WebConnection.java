@@ -0,0 +1,125 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An open connection to a web server, speaking version 2 of the protocol.
+ * <br />
+ * Responses are received into one large direct buffer per connection, which callers read from in place, so bodies can
+ * be written to a file or decoded without copying them through the heap first.
+ */
+class WebConnection {
+	/** Bytes received at a time. */
+	static final int RECEIVE_BUFFER = 128 * 1024;
+
+	final String host;
+	final int port;
+	final SocketChannel channel;
+	/** Set once a request has been sent, so a failure may just mean the server closed it while idle. */
+	boolean reused;
+	/** Nanoseconds it took to connect, about one round trip, which each request reports to the server. */
+	final long connectTime;
+	/** When the connection was last given back to its pool, in {@link System#nanoTime()}. */
+	long lastUsed;
+	/** Bytes received but not read yet, between its position and limit. */
+	private final ByteBuffer received = ByteBuffer.allocateDirect(RECEIVE_BUFFER);
+
+	WebConnection(String host, int port) throws IOException {
+		this.host = host;
+		this.port = port;
+		long began = System.nanoTime();
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		connectTime = System.nanoTime() - began;
+		// Requests are small and answered before the next one, so there is nothing to gain from delaying them
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		received.flip();
+	}
+
+	/**
+	 * Sends a request, and waits for the status of the response.
+	 * @param request The request.
+	 * @return The status byte.
+	 * @throws IOException Throws if the request could not be sent, or the connection was closed.
+	 */
+	byte send(WebRequest request) throws IOException {
+		ByteBuffer out = ByteBuffer.wrap(request.encode(connectTime / 1000).getBytes(StandardCharsets.UTF_8));
+		while (out.hasRemaining()) channel.write(out);
+		byte code = receive(1).get();
+		reused = true;
+		return code;
+	}
+
+	/**
+	 * Reads a number from a response header.
+	 * @return The next 8 bytes, big endian.
+	 * @throws IOException Throws if the connection was closed first.
+	 */
+	long readLong() throws IOException {
+		return receive(8).getLong();
+	}
+
+	/**
+	 * Reads a run of bytes from a response header.
+	 * @param count Bytes to read.
+	 * @return The next {@code count} bytes.
+	 * @throws IOException Throws if the connection was closed first.
+	 */
+	byte[] readBytes(int count) throws IOException {
+		byte[] bytes = new byte[count];
+		receive(count).get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Makes sure bytes of the response are buffered, reading from the socket if there are too few.
+	 * @param count Bytes needed, at most {@link #RECEIVE_BUFFER}.
+	 * @return The buffer, with at least {@code count} unread bytes between its position and limit. Callers read them by
+	 * moving its position, and must not read past the end of the response.
+	 * @throws IOException Throws if the connection was closed first.
+	 */
+	ByteBuffer receive(int count) throws IOException {
+		if (received.remaining() >= count) return received;
+		received.compact();
+		try {
+			while (received.position() < count) if (channel.read(received) < 0) throw new EOFException();
+		} finally {
+			received.flip();
+		}
+		return received;
+	}
+
+	/**
+	 * Checks that an idle connection can still take a request, by reading from it without blocking.
+	 * The server sends nothing between responses, so anything read means it closed the connection, or the stream is out
+	 * of step with the responses.
+	 * @return True if the connection is still open, with nothing unexpected waiting on it.
+	 */
+	boolean isOpen() {
+		if (!channel.isOpen() || received.hasRemaining()) return false;
+		try {
+			channel.configureBlocking(false);
+			return channel.read(ByteBuffer.allocate(1)) == 0;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				channel.configureBlocking(true);
+			} catch (IOException ignored) {}
+		}
+	}
+
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException ignored) {}
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+}
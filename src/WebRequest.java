@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A request in the web protocol. A version 1 request is just the requested path. Later versions add header lines after
+ * the path, each one {@code key: value}, and the whole request ends with {@link Web#PROTOCOL_DELIM} as before:
+ * <pre>
+ *     /F1.mp4
+ *     version: 2
+ *     connection: close
+ *     range: 1000-
+ *     rtt: 850
+ * </pre>
+ * A version 1 response is a status byte followed by the file, ended by the server closing the connection. A version 2
+ * response is framed, so the connection stays open for more requests (unless the client asks for it to be closed), and
+ * a client may send several requests before reading the responses, which come back in the same order:
+ * <pre>
+ *     byte   status        {@link Web#STATUS_OK}, {@link Web#STATUS_PARTIAL} or {@link Web#STATUS_NOT_FOUND}
+ *     long   length        bytes of content that follow (big endian)
+ *     -- partial responses only --
+ *     long   start         offset in the file of the first byte that follows
+ *     long   total         size of the whole file
+ *     byte[] validator     {@link #VALIDATOR_SIZE} bytes, the SHA-256 hash of the whole file
+ * </pre>
+ * A version 2 request may ask for a range of bytes, {@code start-end} with the end included, or {@code start-} for the
+ * rest of the file. The answer is a partial response, cut short at the end of the file, so a range past the end gets no
+ * bytes at all but still learns the size of the file. A client putting together a file from several ranges, possibly
+ * fetched at different times, compares their validators to make sure they all come from the same version of it.
+ * <br />
+ * A client may also report the round trip to the server, as the time it took to connect in microseconds, which the
+ * server passes on in its {@link LoadReport}s.
+ */
+public class WebRequest {
+	/** Protocol versions. */
+	public static final int
+		VERSION_1 = 1,
+		VERSION_2 = 2;
+	/** Header keys. */
+	private static final String
+		HEADER_VERSION = "version",
+		HEADER_CONNECTION = "connection",
+		HEADER_RANGE = "range",
+		HEADER_RTT = "rtt";
+	private static final String CONNECTION_CLOSE = "close";
+	private static final String LINE_DELIM = "\r\n";
+	/** Bytes in the validator of a partial response. */
+	static final int VALIDATOR_SIZE = ContentCatalog.HASH_SIZE;
+	/** Bytes in a version 2 response header, and in a partial one. */
+	static final int
+		HEADER_SIZE = 1 + 8,
+		PARTIAL_HEADER_SIZE = HEADER_SIZE + 8 + 8 + VALIDATOR_SIZE;
+
+	public final String path;
+	public final int version;
+	/** False if the connection is closed after the response. */
+	public final boolean keepAlive;
+	/** First byte asked for, -1 for the whole file. */
+	public final long rangeStart;
+	/** Last byte asked for, -1 for the rest of the file. */
+	public final long rangeEnd;
+	/** Round trip to the server reported by the client, in microseconds, -1 if it did not send one. */
+	public final long rtt;
+
+	public WebRequest(String path, int version, boolean keepAlive) {
+		this(path, version, keepAlive, -1, -1);
+	}
+
+	public WebRequest(String path, int version, boolean keepAlive, long rangeStart, long rangeEnd) {
+		this(path, version, keepAlive, rangeStart, rangeEnd, -1);
+	}
+
+	public WebRequest(String path, int version, boolean keepAlive, long rangeStart, long rangeEnd, long rtt) {
+		this.path = path;
+		this.version = version;
+		this.keepAlive = keepAlive && version >= VERSION_2;
+		// Ranges need the partial header, which version 1 does not have
+		this.rangeStart = version >= VERSION_2 ? rangeStart : -1;
+		this.rangeEnd = version >= VERSION_2 && rangeStart >= 0 ? rangeEnd : -1;
+		this.rtt = version >= VERSION_2 ? rtt : -1;
+	}
+
+	/**
+	 * Reads a request.
+	 * @param raw The request, without its {@link Web#PROTOCOL_DELIM}.
+	 * @return The request. Unknown headers are ignored.
+	 * @throws IllegalArgumentException Throws if a header is malformed.
+	 */
+	public static WebRequest parse(String raw) {
+		String[] lines = raw.split(LINE_DELIM);
+		int version = VERSION_1;
+		boolean keepAlive = true;
+		long rangeStart = -1, rangeEnd = -1, rtt = -1;
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon < 0) throw new IllegalArgumentException("Malformed header: " + lines[i]);
+			String key = lines[i].substring(0, colon).trim().toLowerCase();
+			String value = lines[i].substring(colon + 1).trim();
+			switch (key) {
+				case HEADER_VERSION:
+					try {
+						version = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Malformed version: " + value);
+					}
+					break;
+				case HEADER_CONNECTION:
+					keepAlive = !value.equalsIgnoreCase(CONNECTION_CLOSE);
+					break;
+				case HEADER_RANGE:
+					int dash = value.indexOf('-');
+					try {
+						rangeStart = Long.parseLong(value.substring(0, dash));
+						rangeEnd = dash == value.length() - 1 ? -1 : Long.parseLong(value.substring(dash + 1));
+					} catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+						throw new IllegalArgumentException("Malformed range: " + value);
+					}
+					if (rangeStart < 0 || rangeEnd != -1 && rangeEnd < rangeStart)
+						throw new IllegalArgumentException("Malformed range: " + value);
+					break;
+				case HEADER_RTT:
+					try {
+						rtt = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Malformed rtt: " + value);
+					}
+					if (rtt < 0) throw new IllegalArgumentException("Malformed rtt: " + value);
+					break;
+			}
+		}
+		return new WebRequest(lines.length > 0 ? lines[0] : "/", version, keepAlive, rangeStart, rangeEnd, rtt);
+	}
+
+	/**
+	 * @return The request as sent by a client, {@link Web#PROTOCOL_DELIM} included.
+	 */
+	public String encode() {
+		return encode(rtt);
+	}
+
+	/**
+	 * @param rtt Round trip to the server in microseconds, reported in the request, or -1 to leave it out.
+	 * @return The request as sent by a client, {@link Web#PROTOCOL_DELIM} included.
+	 */
+	public String encode(long rtt) {
+		StringBuilder sb = new StringBuilder(path);
+		if (version >= VERSION_2) {
+			sb.append(LINE_DELIM).append(HEADER_VERSION).append(": ").append(version);
+			if (!keepAlive) sb.append(LINE_DELIM).append(HEADER_CONNECTION).append(": ").append(CONNECTION_CLOSE);
+			if (isRange()) {
+				sb.append(LINE_DELIM).append(HEADER_RANGE).append(": ").append(rangeStart).append('-');
+				if (rangeEnd >= 0) sb.append(rangeEnd);
+			}
+			if (rtt >= 0) sb.append(LINE_DELIM).append(HEADER_RTT).append(": ").append(rtt);
+		}
+		return sb.append(Web.PROTOCOL_DELIM).toString();
+	}
+
+	/**
+	 * Creates the header of the response to this request.
+	 * @param status Status of the response.
+	 * @param length Bytes of content that follow.
+	 * @return The header, ready to send.
+	 */
+	public ByteBuffer responseHeader(byte status, long length) {
+		if (version < VERSION_2) return ByteBuffer.wrap(new byte[]{status});
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(status).putLong(length).flip();
+		return header;
+	}
+
+	/**
+	 * @return True if only part of the file was asked for.
+	 */
+	public boolean isRange() {
+		return rangeStart >= 0;
+	}
+
+	/**
+	 * @param total Size of the file.
+	 * @return Offset of the first byte to send, cut short at the end of the file.
+	 */
+	public long start(long total) {
+		return isRange() ? Math.min(rangeStart, total) : 0;
+	}
+
+	/**
+	 * @param total Size of the file.
+	 * @return Number of bytes to send, cut short at the end of the file.
+	 */
+	public long length(long total) {
+		long end = isRange() && rangeEnd >= 0 ? Math.min(rangeEnd + 1, total) : total;
+		return Math.max(0, end - start(total));
+	}
+
+	/**
+	 * Creates the header of the response to this request, when the file was found.
+	 * @param total Size of the whole file.
+	 * @param validator Hash of the whole file, {@link #VALIDATOR_SIZE} bytes.
+	 * @return The header, ready to send. Partial if a range was asked for.
+	 */
+	public ByteBuffer responseHeader(long total, byte[] validator) {
+		if (!isRange()) return responseHeader(Web.STATUS_OK, total);
+		ByteBuffer header = ByteBuffer.allocate(PARTIAL_HEADER_SIZE);
+		header.put(Web.STATUS_PARTIAL).putLong(length(total)).putLong(start(total)).putLong(total).put(validator).flip();
+		return header;
+	}
+
+	@Override
+	public String toString() {
+		if (!isRange()) return path;
+		return path + " [" + rangeStart + "-" + (rangeEnd >= 0 ? rangeEnd : "") + "]";
+	}
+}
@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking engine for {@link Web}. A few threads each run a {@link Selector} over many connections, so an open
+ * connection costs a small read buffer rather than a thread and its stack. The first loop also accepts connections,
+ * handing them out to the loops in turn.
+ * <br />
+ * Connections stay open between requests as long as the protocol version allows, and pipelined requests are answered
+ * in order. Files are sent from the {@link ContentCache} when it has them, otherwise with {@link FileChannel#transferTo}, so
+ * their bytes go from the page cache to the socket without passing through user space. Each send goes as far as the
+ * client's socket buffer allows, and is resumed from the same position once the socket is writable again.
+ */
+class WebSelector {
+	/** Most time (in ms) a loop waits before checking for shutdown and idle connections. */
+	private static final int SELECT_TIMEOUT = 1000;
+	/** Time (in ms) accepting pauses for after it failed, such as when the process is out of file descriptors. */
+	private static final int ACCEPT_BACKOFF = 100;
+
+	private final Web web;
+	private final ServerSocketChannel server;
+	private final PrintWriter writer;
+	private final Loop[] loops;
+	private int nextLoop;
+	/** Set while accepting is paused because the connection cap was reached, or accepting failed. */
+	private volatile boolean acceptPaused;
+	/** Time (in ms) accepting may resume after a failure, 0 if it did not fail. Only used by the first loop. */
+	private long acceptRetry;
+
+	/**
+	 * @param web The server whose content and counters are used.
+	 * @param server Bound channel to accept connections on.
+	 * @param threads Number of selector loops.
+	 * @param writer Output for log messages.
+	 * @throws IOException Throws if a selector could not be opened.
+	 */
+	WebSelector(Web web, ServerSocketChannel server, int threads, PrintWriter writer) throws IOException {
+		this.web = web;
+		this.server = server;
+		this.writer = writer;
+		loops = new Loop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) loops[i] = new Loop();
+	}
+
+	/**
+	 * Runs the loops until the server is stopped and the connections in progress have drained.
+	 * @param drainSeconds Seconds to let connections in progress finish once stopped.
+	 */
+	void run(int drainSeconds) {
+		try {
+			server.configureBlocking(false);
+			server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			writer.println("ERROR - Could not register the server channel.");
+			writer.flush();
+			return;
+		}
+		Thread[] threads = new Thread[loops.length];
+		for (int i = 1; i < loops.length; i++) {
+			Loop loop = loops[i];
+			threads[i] = new Thread(() -> loop.run(drainSeconds), "web-selector-" + i);
+			threads[i].start();
+		}
+		loops[0].run(drainSeconds);
+		for (int i = 1; i < threads.length; i++) {
+			try {
+				threads[i].join();
+			} catch (InterruptedException ignored) {}
+		}
+	}
+
+	/**
+	 * Wakes up every loop, so they notice the server was stopped.
+	 */
+	void wakeup() {
+		for (Loop loop : loops) loop.selector.wakeup();
+	}
+
+	/** A selector, and the connections registered with it. */
+	private class Loop {
+		final Selector selector;
+		/** Connections accepted by the first loop, waiting to be registered with this one. */
+		final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+
+		Loop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void run(int drainSeconds) {
+			long drainDeadline = 0, nextIdleCheck = 0;
+			while (true) {
+				long timeout = SELECT_TIMEOUT;
+				if (acceptRetry > 0) timeout = Math.max(1, Math.min(timeout, acceptRetry - System.currentTimeMillis()));
+				try {
+					selector.select(timeout);
+				} catch (IOException e) {
+					writer.println("ERROR - Selector failed.");
+					break;
+				}
+				registerAccepted();
+				if (acceptPaused && this == loops[0] && System.currentTimeMillis() >= acceptRetry
+					&& web.activeConnections() < web.getMaxConnections())
+					resumeAccepting();
+
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					try {
+						if (key.isReadable()) read(key);
+						else if (key.isWritable()) write(key);
+					} catch (IOException | RuntimeException e) {
+						close(key);
+					}
+				}
+				selector.selectedKeys().clear();
+
+				long now = System.currentTimeMillis();
+				if (now >= nextIdleCheck || !web.isRunning()) {
+					closeIdle(now);
+					nextIdleCheck = now + SELECT_TIMEOUT;
+				}
+				if (!web.isRunning()) {
+					// Stopped: the server channel and idle connections are closed, so only responses in progress are left
+					if (drainDeadline == 0) drainDeadline = now + drainSeconds * 1000L;
+					if (connections() == 0) break;
+					if (now >= drainDeadline) {
+						writer.printf("Gave up on %d connections.\n", connections());
+						for (SelectionKey key : selector.keys()) if (key.attachment() != null) close(key);
+						break;
+					}
+				}
+			}
+			writer.flush();
+			try {
+				selector.close();
+			} catch (IOException ignored) {}
+		}
+
+		/**
+		 * Accepts every waiting connection, up to the cap. If accepting fails, it pauses for {@link #ACCEPT_BACKOFF} ms
+		 * rather than giving up on the server channel, since the cause, such as running out of file descriptors, usually
+		 * passes once some connections close.
+		 */
+		private void accept() {
+			SocketChannel channel;
+			try {
+				while (web.activeConnections() < web.getMaxConnections() && (channel = server.accept()) != null) {
+					web.opened();
+					Loop loop = loops[nextLoop++ % loops.length];
+					loop.accepted.add(channel);
+					if (loop != this) loop.selector.wakeup();
+				}
+			} catch (IOException e) {
+				if (!web.isRunning()) return; // The server channel was closed to stop
+				writer.printf("ERROR - Could not accept a connection, retrying in %d ms: %s\n", ACCEPT_BACKOFF, e);
+				writer.flush();
+				acceptRetry = System.currentTimeMillis() + ACCEPT_BACKOFF;
+				pauseAccepting();
+				return;
+			}
+			// Leave the rest in the kernel backlog until a connection closes
+			if (web.activeConnections() >= web.getMaxConnections()) pauseAccepting();
+		}
+
+		private void pauseAccepting() {
+			SelectionKey key = server.keyFor(selector);
+			if (key != null && key.isValid()) key.interestOps(0);
+			acceptPaused = true;
+		}
+
+		private void resumeAccepting() {
+			SelectionKey key = server.keyFor(selector);
+			if (key != null && key.isValid()) key.interestOps(SelectionKey.OP_ACCEPT);
+			acceptPaused = false;
+			acceptRetry = 0;
+		}
+
+		private void registerAccepted() {
+			SocketChannel channel;
+			while ((channel = accepted.poll()) != null) {
+				try {
+					channel.configureBlocking(false);
+					// The header and body go out in separate writes, which must not wait on the client's delayed ack
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					channel.register(selector, SelectionKey.OP_READ, new Connection(channel.socket().getInetAddress()));
+				} catch (IOException e) {
+					try {
+						channel.close();
+					} catch (IOException ignored) {}
+					web.closed();
+				}
+			}
+		}
+
+		private int connections() {
+			int count = accepted.size();
+			for (SelectionKey key : selector.keys()) if (key.attachment() != null) count++;
+			return count;
+		}
+
+		/**
+		 * Reads what has arrived of the next request, and starts the response once all of it has.
+		 */
+		private void read(SelectionKey key) throws IOException {
+			Connection connection = (Connection) key.attachment();
+			SocketChannel channel = (SocketChannel) key.channel();
+			if (channel.read(connection.in) < 0) {
+				close(key);
+				return;
+			}
+			connection.lastActive = System.currentTimeMillis();
+			nextRequest(key, connection);
+		}
+
+		/**
+		 * Starts the response to the next request, if all of it has been read.
+		 */
+		private void nextRequest(SelectionKey key, Connection connection) throws IOException {
+			connection.in.flip();
+			String raw = connection.parser.next(connection.in);
+			connection.in.compact(); // Keeps anything past the request, in case requests are pipelined
+			if (raw == null) return;
+
+			WebRequest request = WebRequest.parse(raw);
+			connection.request = request;
+			web.served(connection.address, request);
+			connection.file = web.acquireFile(request.path);
+			if (connection.file != null) {
+				long total = connection.file.size;
+				writer.printf("%s - %s Requested file: %s\n", request.isRange() ? "206" : "200", connection.address, request);
+				connection.position = request.start(total);
+				connection.remaining = request.length(total);
+				connection.header = request.responseHeader(total, connection.file.hash);
+				connection.body = web.cachedContent(connection.file);
+				if (connection.body != null)
+					connection.body.position((int) connection.position).limit((int) (connection.position + connection.remaining));
+			} else {
+				writer.printf("404 - %s Requested file: %s\n", connection.address, request);
+				connection.header = request.responseHeader(Web.STATUS_NOT_FOUND, 0);
+			}
+			writer.flush();
+			// Nothing more is read until this response is written
+			key.interestOps(SelectionKey.OP_WRITE);
+			write(key);
+		}
+
+		/**
+		 * Writes as much of the response as the socket takes. The rest is written the next time the socket is writable.
+		 */
+		private void write(SelectionKey key) throws IOException {
+			Connection connection = (Connection) key.attachment();
+			SocketChannel channel = (SocketChannel) key.channel();
+			connection.lastActive = System.currentTimeMillis();
+			channel.write(connection.header);
+			if (connection.header.hasRemaining()) return;
+			if (connection.body != null) {
+				channel.write(connection.body);
+				if (connection.body.hasRemaining()) return;
+			}
+
+			while (connection.body == null && connection.remaining > 0) {
+				FileChannel file = connection.file.channel();
+				long sent = file.transferTo(connection.position, connection.remaining, channel);
+				if (sent == 0) {
+					if (connection.position >= file.size()) throw new IOException("File shrank while sending.");
+					return; // Socket buffer is full
+				}
+				connection.position += sent;
+				connection.remaining -= sent;
+			}
+
+			if (!connection.request.keepAlive || web.getKeepAliveTimeout() == 0 || !web.isRunning()) {
+				close(key);
+				return;
+			}
+			connection.finish();
+			connection.served = true;
+			key.interestOps(SelectionKey.OP_READ);
+			nextRequest(key, connection);
+		}
+
+		/**
+		 * Closes connections that have waited too long for their next request, or new ones for their first. Once stopped,
+		 * they are closed right away.
+		 */
+		private void closeIdle(long now) {
+			long idleSince = web.isRunning() ? now - web.getKeepAliveTimeout() * 1000L : Long.MAX_VALUE;
+			long newSince = web.isRunning() ? now - Web.REQUEST_TIMEOUT * 1000L : Long.MAX_VALUE;
+			for (SelectionKey key : selector.keys()) {
+				Connection connection = (Connection) key.attachment();
+				if (connection != null && connection.request == null
+					&& connection.lastActive < (connection.served ? idleSince : newSince)) close(key);
+			}
+		}
+
+		/**
+		 * Closes a connection. The server channel is never closed here, only by {@link Web#stop()}.
+		 */
+		private void close(SelectionKey key) {
+			Connection connection = (Connection) key.attachment();
+			if (connection == null) return; // The server channel
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException ignored) {}
+			connection.finish();
+			web.closed();
+			if (acceptPaused) loops[0].selector.wakeup();
+		}
+	}
+
+	/** State of one connection. */
+	private static class Connection {
+		final InetAddress address;
+		final ByteBuffer in = ByteBuffer.allocate(Web.READ_BUFFER_SIZE);
+		final RequestParser parser = new RequestParser();
+		/** Time (in ms) of the last read or write, for the keep-alive timeout. */
+		long lastActive = System.currentTimeMillis();
+		/** Set once a response has been written, from then on the keep-alive timeout applies rather than the request one. */
+		boolean served;
+
+		/** Request being answered, null while waiting for the next one. */
+		WebRequest request;
+		/** Response header still to send. */
+		ByteBuffer header;
+		/** File being sent, held until the response is done. Null for a 404. */
+		ContentCatalog.Entry file;
+		/** Cached contents of the file, null to send it from the file itself. */
+		ByteBuffer body;
+		long position, remaining;
+
+		Connection(InetAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * Lets go of the current response.
+		 */
+		void finish() {
+			if (file != null) file.release();
+			request = null;
+			header = null;
+			file = null;
+			body = null;
+			position = 0;
+			remaining = 0;
+		}
+	}
+}
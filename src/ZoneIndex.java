@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dns records indexed by name, as a trie of labels starting from the top level domain. For example
+ * {@code video.hercdn.ca} is stored under {@code ca -> hercdn -> video}. This lets a lookup find both the exact record
+ * for a name, and the most specific NS record above it, in a single walk over the labels.
+ * <br />
+ * Records are added while the index is being built. It must not be changed once it is shared with other threads.
+ */
+public class ZoneIndex {
+	private final Node root = new Node();
+	private int size = 0;
+
+	/**
+	 * Adds a record. A name may have several A records, one for each server it can be reached at. For other types a
+	 * name has at most one record, except NS records which are merged into one comma separated value, in the order they
+	 * were added.
+	 * @param name Name the record is for.
+	 * @param record The record.
+	 */
+	public void add(String name, DnsRecord record) {
+		Node node = root;
+		int end = name.length();
+		while (end >= 0) {
+			int dot = name.lastIndexOf('.', end - 1);
+			node = node.childOrCreate(name.substring(dot + 1, end));
+			end = dot;
+		}
+
+		switch (record.type) {
+			case Dns.DNS_TYPE_A:
+				if (node.a == null) node.a = new ArrayList<>();
+				node.a.add(record);
+				break;
+			case Dns.DNS_TYPE_V:
+				node.v = Collections.singletonList(record);
+				break;
+			case Dns.DNS_TYPE_CNAME:
+				node.cname = Collections.singletonList(record);
+				break;
+			case Dns.DNS_TYPE_NS:
+				// Several name servers for the same domain are kept as one comma separated value, tried in order
+				DnsRecord ns = node.ns == null ? record
+					: new DnsRecord(Dns.DNS_TYPE_NS, node.ns.get(0).value + "," + record.value, Math.min(node.ns.get(0).ttl, record.ttl));
+				node.ns = Collections.singletonList(ns);
+				break;
+			default:
+				return;
+		}
+		size++;
+	}
+
+	/**
+	 * Finds the best records for a name. In order of preference, that is the A, V, or CNAME records of the name itself,
+	 * or the NS record of the longest domain that the name is part of.
+	 * @param name The name to look up.
+	 * @return The records found, all of the same type. Null if there are none. Must not be modified.
+	 */
+	public List<DnsRecord> lookup(String name) {
+		Node node = root;
+		List<DnsRecord> ns = null;
+		int end = name.length();
+		while (end >= 0) {
+			int dot = name.lastIndexOf('.', end - 1);
+			node = node.child(name.substring(dot + 1, end));
+			if (node == null) return ns;
+			if (node.ns != null) ns = node.ns;
+			end = dot;
+		}
+		List<DnsRecord> exact = node.a != null ? node.a : node.v != null ? node.v : node.cname;
+		return exact != null ? exact : ns;
+	}
+
+	/**
+	 * @return Number of records added.
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		root.append(sb, "");
+		if (sb.length() > 1) sb.setLength(sb.length() - 2);
+		return sb.append('}').toString();
+	}
+
+	/** A label in the trie, and the records for the name it ends. */
+	private static class Node {
+		private Map<String, Node> children;
+		List<DnsRecord> a, v, cname, ns;
+
+		Node child(String label) {
+			return children == null ? null : children.get(label);
+		}
+
+		Node childOrCreate(String label) {
+			if (children == null) children = new HashMap<>();
+			return children.computeIfAbsent(label, l -> new Node());
+		}
+
+		/**
+		 * Appends the records of this node and every node below it.
+		 * @param sb Builder to append to.
+		 * @param name Name this node ends.
+		 */
+		void append(StringBuilder sb, String name) {
+			for (List<DnsRecord> records : Arrays.asList(a, v, cname, ns))
+				if (records != null) for (DnsRecord record : records) sb.append(name).append(' ').append(record).append(", ");
+			if (children == null) return;
+			for (Map.Entry<String, Node> child : children.entrySet())
+				child.getValue().append(sb, name.isEmpty() ? child.getKey() : child.getKey() + "." + name);
+		}
+	}
+}
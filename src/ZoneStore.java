@@ -0,0 +1,116 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the records a dns server answers from. Readers always see a complete, immutable {@link ZoneIndex}. A reload
+ * builds a new index from the zone file, then swaps it in atomically, so lookups never lock, and requests being
+ * resolved at the time keep going.
+ */
+public class ZoneStore {
+	private final String filename;
+	private final AtomicReference<ZoneIndex> current;
+
+	/** Modification time of the file when it was last loaded, and a newer one seen but not loaded yet. */
+	private long loadedModified, seenModified;
+
+	/**
+	 * Creates a store that loads its records from a file.
+	 * @param filename Zone file to load from. See README.md for format.
+	 * @throws FileNotFoundException Throws if the file does not exist.
+	 */
+	public ZoneStore(String filename) throws FileNotFoundException {
+		this.filename = filename;
+		loadedModified = seenModified = new File(filename).lastModified();
+		current = new AtomicReference<>(read(filename));
+	}
+
+	/**
+	 * Creates a store with fixed records, that cannot be reloaded.
+	 * @param records Records to serve.
+	 */
+	public ZoneStore(ZoneIndex records) {
+		this.filename = null;
+		current = new AtomicReference<>(records);
+	}
+
+	/**
+	 * @return The latest records. Keep using the same index for the whole of a lookup.
+	 */
+	public ZoneIndex current() {
+		return current.get();
+	}
+
+	/**
+	 * Loads the zone file again, and swaps in the new records. If the file cannot be read, the old records are kept.
+	 * @return True if new records were loaded.
+	 */
+	public synchronized boolean reload() {
+		if (filename == null) return false;
+		try {
+			long modified = new File(filename).lastModified();
+			ZoneIndex records = read(filename);
+			current.set(records);
+			loadedModified = seenModified = modified;
+			System.out.printf("\nReloaded %d records from: %s\n", records.size(), filename);
+			return true;
+		} catch (FileNotFoundException e) {
+			System.out.printf("\nERROR - Could not reload: %s\n", filename);
+			return false;
+		}
+	}
+
+	/**
+	 * Reloads the zone file if it has been modified. A change is only loaded once the modification time has been the
+	 * same for two calls in a row, so a file that is still being written is not loaded half way through.
+	 * @return True if new records were loaded.
+	 */
+	public synchronized boolean reloadIfChanged() {
+		if (filename == null) return false;
+		long modified = new File(filename).lastModified();
+		if (modified == 0 || modified == loadedModified) return false;
+		if (modified != seenModified) {
+			seenModified = modified;
+			return false;
+		}
+		return reload();
+	}
+
+	/**
+	 * Reads an index of records from a file. Each line is in the format: {@code key type value [ttl [weight]]}.
+	 * @param filename Filename to load from.
+	 * @return An index populated with the records.
+	 * @throws FileNotFoundException Throws if it cannot find the file specified.
+	 */
+	static ZoneIndex read(String filename) throws FileNotFoundException {
+		ZoneIndex records = new ZoneIndex();
+
+		Scanner scanner = new Scanner(new File(filename));
+		while (scanner.hasNextLine()) {
+			String[] tokens = scanner.nextLine().trim().split("\\s+");
+			if (tokens.length < 3) continue;
+			String
+				key = tokens[0],
+				type = tokens[1],
+				value = tokens[2];
+			int
+				ttl = DnsRecord.DEFAULT_TTL,
+				weight = DnsRecord.DEFAULT_WEIGHT;
+			try {
+				if (tokens.length > 3) ttl = Integer.parseInt(tokens[3]);
+				if (tokens.length > 4) weight = Math.max(1, Integer.parseInt(tokens[4]));
+			} catch (NumberFormatException e) {
+				System.out.printf("Invalid ttl or weight for %s, using defaults\n", key);
+			}
+			records.add(key, new DnsRecord(type, value, ttl, weight));
+		}
+		scanner.close();
+		return records;
+	}
+
+	@Override
+	public String toString() {
+		return current().toString();
+	}
+}